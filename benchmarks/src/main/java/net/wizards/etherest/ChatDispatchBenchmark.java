@@ -0,0 +1,73 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.util.SerialDispatcher;
+import net.wizards.etherest.util.Workers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Update dispatch for 10k concurrently active chats under each execution mode. Every update handler blocks for
+ * {@code ioMillis}, standing in for the Redis and Bot API round trips of a real handler. One operation is a full
+ * round: {@code updatesPerChat} updates for each of the chats submitted and handled.
+ * <p>
+ * The virtual mode needs a JVM with virtual threads (21+); on older JVMs it falls back to the platform pool and
+ * both modes report the same figures.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ChatDispatchBenchmark {
+    @Param({Workers.MODE_PLATFORM, Workers.MODE_VIRTUAL})
+    public String mode;
+
+    @Param("10000")
+    public int chats;
+
+    @Param("2")
+    public int updatesPerChat;
+
+    @Param("5")
+    public int ioMillis;
+
+    @Param("16")
+    public int workerThreads;
+
+    private SerialDispatcher<Long> dispatcher;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Fixtures.quietConfig();
+        dispatcher = new SerialDispatcher<>(Workers.newPool(mode, workerThreads, "chat_handler[%d]"),
+                updatesPerChat, chats * updatesPerChat, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dispatcher.shutdown();
+    }
+
+    @Benchmark
+    public long round() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(chats * updatesPerChat);
+        Runnable handler = () -> {
+            try {
+                Thread.sleep(ioMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            done.countDown();
+        };
+        for (int update = 0; update < updatesPerChat; update++) {
+            for (long chat = 0; chat < chats; chat++) {
+                dispatcher.submit(chat, handler);
+            }
+        }
+        done.await();
+        return dispatcher.getProcessed();
+    }
+}
@@ -0,0 +1,59 @@
+package net.wizards.etherest;
+
+import com.google.gson.Gson;
+import net.wizards.etherest.bot.dom.Client;
+import net.wizards.etherest.bot.util.Codecs;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client record encoding and decoding on the {@code Db.writeClient}/{@code readClient} path, without the Redis round
+ * trip: a new reflective {@link Gson} per call going through a {@code String} as {@code Db} did, against the shared
+ * {@link Codecs#CLIENT} codec working on the bytes Jedis sends and receives.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    private Client client;
+    private byte[] stored;
+
+    @Setup
+    public void setup() {
+        Fixtures.quietConfig();
+        client = new Client.Builder()
+                .setId(123456789)
+                .setFirstName("Иван")
+                .setLastName("Petrov")
+                .setUserName("ivan_petrov")
+                .setLangCode("ru")
+                .setWalletId("0x52908400098527886E0F7030069857D2E4169EE7")
+                .build();
+        stored = new Gson().toJson(client).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeGson() {
+        return new Gson().toJson(client).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] writeCodec() {
+        return Codecs.CLIENT.encode(client);
+    }
+
+    @Benchmark
+    public Client readGson() {
+        return new Gson().fromJson(new String(stored, StandardCharsets.UTF_8), Client.class);
+    }
+
+    @Benchmark
+    public Client readCodec() {
+        return Codecs.CLIENT.decode(stored);
+    }
+}
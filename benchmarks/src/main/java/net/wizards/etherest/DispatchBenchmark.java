@@ -0,0 +1,108 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.annotation.RequestMapping;
+import net.wizards.etherest.http.Request;
+import net.wizards.etherest.http.Response;
+import net.wizards.etherest.http.Responses;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reflective {@code Method.invoke} dispatch (as it was in AbstractService) against the compiled {@link RouteTable}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    private Handlers handlers;
+    private RouteTable routes;
+    private Map<MappingKey, Method> workers;
+    private Request request;
+
+    @Setup
+    public void setup() {
+        handlers = new Handlers();
+        routes = RouteTable.compile(handlers);
+        workers = new HashMap<>();
+        for (Method method : Handlers.class.getDeclaredMethods()) {
+            RequestMapping map = method.getAnnotation(RequestMapping.class);
+            if (map != null) {
+                for (String resource : map.value()) {
+                    for (Request.Method httpMethod : map.method()) {
+                        workers.put(new MappingKey(resource, httpMethod), method);
+                    }
+                }
+            }
+        }
+        Fixtures.quietConfig();
+        request = Fixtures.request(Fixtures.GET_QUERY);
+        request.getResource();
+    }
+
+    @Benchmark
+    public Response reflective() throws Exception {
+        Method method = workers.get(new MappingKey(request.getResource(), request.getMethod()));
+        return (Response) method.invoke(handlers, request);
+    }
+
+    @Benchmark
+    public Response compiled() throws Exception {
+        return routes.find(request.getMethod(), request.getResource()).handler.handle(request);
+    }
+
+    public static class Handlers {
+        private final Response response = Responses.plaintextOk("OK");
+
+        @RequestMapping("/rest/shutdown")
+        public Response shutdown(Request request) {
+            return response;
+        }
+
+        @RequestMapping("/rest/self_test")
+        public Response selfTest(Request request) {
+            return response;
+        }
+
+        @RequestMapping("/rest/stats")
+        public Response stats(Request request) {
+            return response;
+        }
+
+        @RequestMapping("/rest/version")
+        public Response version(Request request) {
+            return response;
+        }
+    }
+
+    private static final class MappingKey {
+        private final String resource;
+        private final Request.Method method;
+
+        private MappingKey(String resource, Request.Method method) {
+            this.resource = resource;
+            this.method = method;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            MappingKey that = (MappingKey) o;
+
+            return resource.equals(that.resource) && method == that.method;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * resource.hashCode() + method.hashCode();
+        }
+    }
+}
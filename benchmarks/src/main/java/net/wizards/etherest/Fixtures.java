@@ -0,0 +1,151 @@
+package net.wizards.etherest;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import net.wizards.etherest.http.HttpParser;
+import net.wizards.etherest.http.RawRequest;
+import net.wizards.etherest.http.Request;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Shared benchmark fixtures: canned requests, in-memory sockets and configurations with all talk logging off or on.
+ */
+public final class Fixtures {
+    public static final String GET = "GET /rest/self_test HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:13085\r\n"
+            + "User-Agent: curl/7.58.0\r\n"
+            + "Accept: */*\r\n"
+            + "\r\n";
+    public static final String GET_QUERY = "GET /rest/stats?cid=1234567&did=abcdef&lang=ru&note=%D0%BF%D1%80%D0%B8%D0%B2%D0%B5%D1%82 HTTP/1.1\r\n"
+            + "Host: 127.0.0.1:13085\r\n"
+            + "User-Agent: curl/7.58.0\r\n"
+            + "Accept: */*\r\n"
+            + "X-Real-IP: 10.0.0.15\r\n"
+            + "\r\n";
+    public static final String POST_JSON = post("/rest/version",
+            "{\"cid\":\"1234567\",\"did\":\"abcdef\",\"lang\":\"ru\",\"note\":\"привет world\"}");
+
+    private static boolean configured;
+
+    private Fixtures() {
+        throw new RuntimeException();
+    }
+
+    public static synchronized void quietConfig() {
+        if (configured) {
+            return;
+        }
+        install("/bench_cfg.json");
+        configured = true;
+    }
+
+    /**
+     * Benchmark configuration with all talk logging on, as in the shipped {@code etherest_cfg.json}.
+     */
+    public static synchronized void talkConfig() {
+        install("/bench_cfg.json", "/bench_talk_cfg.json");
+        configured = true;
+    }
+
+    /**
+     * Installs the resources merged into one file, later ones overriding earlier ones; a config file only
+     * overrides the built-in defaults, not the running configuration.
+     */
+    private static void install(String... resources) {
+        JsonObject merged = new JsonObject();
+        for (String resource : resources) {
+            try (Reader in = new InputStreamReader(Fixtures.class.getResourceAsStream(resource), StandardCharsets.UTF_8)) {
+                new Gson().fromJson(in, JsonObject.class).entrySet().forEach(e -> merged.add(e.getKey(), e.getValue()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Can't read benchmark configuration " + resource, e);
+            }
+        }
+        try {
+            File file = File.createTempFile("bench_cfg", ".json");
+            file.deleteOnExit();
+            Files.write(file.toPath(), merged.toString().getBytes(StandardCharsets.UTF_8));
+            Config.get().setConfig(file.getPath());
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't install benchmark configuration", e);
+        }
+    }
+
+    public static String post(String resource, String json) {
+        return "POST " + resource + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:13085\r\n"
+                + "Content-Type: application/json\r\n"
+                + "Content-Length: " + json.getBytes(StandardCharsets.UTF_8).length + "\r\n"
+                + "\r\n"
+                + json;
+    }
+
+    public static String named(String name) {
+        switch (name) {
+            case "get": return GET;
+            case "get_query": return GET_QUERY;
+            case "post_json": return POST_JSON;
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+
+    public static RawRequest rawRequest(String http) {
+        HttpParser parser = new HttpParser(8192, 65536);
+        parser.buffer().put(http.getBytes(StandardCharsets.UTF_8));
+        return parser.next();
+    }
+
+    public static Request request(String http) {
+        return Request.from(rawRequest(http), "127.0.0.1");
+    }
+
+    /**
+     * Socket replaying a fixed request and swallowing the response; {@link #reset()} rewinds it for the next op.
+     */
+    public static final class StubSocket extends Socket {
+        private final byte[] input;
+        private ByteArrayInputStream in;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+
+        public StubSocket(String http) {
+            this.input = http.getBytes(StandardCharsets.UTF_8);
+            reset();
+        }
+
+        public StubSocket reset() {
+            in = new ByteArrayInputStream(input);
+            out.reset();
+            return this;
+        }
+
+        public int written() {
+            return out.size();
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.wizards.etherest;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * End-to-end throughput/latency harness: starts {@link RestService} in-process and drives it over loopback.
+ * <pre>
+ * java -cp benchmarks.jar net.wizards.etherest.LoopbackHarness [-c clients] [-d seconds] [-w warmupSeconds]
+ *      [-r resource] [--close] [--config etherest_cfg.json]
+ * </pre>
+ * Without {@code --config} all talk logging is switched off. {@code --close} opens a new connection per request.
+ */
+public final class LoopbackHarness {
+    private final int port;
+    private final byte[] request;
+    private final boolean keepAlive;
+
+    private LoopbackHarness(int port, String resource, boolean keepAlive) {
+        this.port = port;
+        this.keepAlive = keepAlive;
+        this.request = ("GET " + resource + " HTTP/1.1\r\n"
+                + "Host: 127.0.0.1:" + port + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = 16;
+        int seconds = 10;
+        int warmup = 3;
+        String resource = "/rest/self_test";
+        String config = null;
+        boolean keepAlive = true;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c": clients = Integer.parseInt(args[++i]); break;
+                case "-d": seconds = Integer.parseInt(args[++i]); break;
+                case "-w": warmup = Integer.parseInt(args[++i]); break;
+                case "-r": resource = args[++i]; break;
+                case "--close": keepAlive = false; break;
+                case "--config": config = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (config != null) {
+            Config.get().setConfig(config);
+        } else {
+            Fixtures.quietConfig();
+        }
+
+        RestService service = RestService.getInstance();
+        Thread listener = new Thread(service);
+        listener.setDaemon(true);
+        listener.start();
+
+        LoopbackHarness harness = new LoopbackHarness(service.getPort(), resource, keepAlive);
+        System.out.printf("transport=%s clients=%d keepAlive=%s resource=%s%n",
+                Config.get().getRestTransport(), clients, keepAlive, resource);
+        harness.run(clients, warmup);
+        Result result = harness.run(clients, seconds);
+        result.print(seconds);
+
+        service.shutdown();
+        System.exit(0);
+    }
+
+    private Result run(int clients, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Client> workers = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Client client = new Client(deadline);
+            workers.add(client);
+            client.start();
+        }
+        Result result = new Result();
+        for (Client client : workers) {
+            client.join();
+            result.add(client);
+        }
+        return result;
+    }
+
+    private final class Client extends Thread {
+        private final long deadline;
+        private long[] latencies = new long[1 << 16];
+        private int count;
+        private int errors;
+
+        Client(long deadline) {
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run() {
+            Socket socket = null;
+            try {
+                while (System.nanoTime() < deadline) {
+                    long start = System.nanoTime();
+                    try {
+                        if (socket == null) {
+                            socket = new Socket(InetAddress.getLoopbackAddress(), port);
+                            socket.setTcpNoDelay(true);
+                        }
+                        OutputStream out = socket.getOutputStream();
+                        out.write(request);
+                        out.flush();
+                        boolean open = readResponse(new BufferedInputStream(socket.getInputStream(), 256));
+                        record(System.nanoTime() - start);
+                        if (!open || !keepAlive) {
+                            socket.close();
+                            socket = null;
+                        }
+                    } catch (IOException e) {
+                        errors++;
+                        closeQuietly(socket);
+                        socket = null;
+                    }
+                }
+            } finally {
+                closeQuietly(socket);
+            }
+        }
+
+        private void record(long nanos) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+        }
+    }
+
+    /**
+     * Reads one response and returns whether the server keeps the connection open.
+     */
+    private static boolean readResponse(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int contentLength = 0;
+        boolean open = true;
+        boolean statusLine = true;
+        while (true) {
+            int b = in.read();
+            if (b == -1) {
+                throw new IOException("Connection closed by server");
+            }
+            if (b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+                continue;
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            String header = line.toString().toLowerCase(Locale.ROOT);
+            if (statusLine) {
+                if (!header.contains(" 200 ")) {
+                    throw new IOException("Unexpected status: " + line);
+                }
+                statusLine = false;
+            } else if (header.startsWith("content-length:")) {
+                contentLength = Integer.parseInt(header.substring(15).trim());
+            } else if (header.startsWith("connection:")) {
+                open = header.contains("keep-alive");
+            }
+            line.setLength(0);
+        }
+        for (int i = 0; i < contentLength; i++) {
+            if (in.read() == -1) {
+                throw new IOException("Truncated response body");
+            }
+        }
+        return open;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private static final class Result {
+        private long[] latencies = new long[0];
+        private int errors;
+
+        void add(Client client) {
+            int offset = latencies.length;
+            latencies = Arrays.copyOf(latencies, offset + client.count);
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            errors += client.errors;
+        }
+
+        void print(int seconds) {
+            Arrays.sort(latencies);
+            System.out.printf("requests=%d errors=%d throughput=%.0f req/s%n",
+                    latencies.length, errors, latencies.length / (double) seconds);
+            System.out.printf("latency us: p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999), percentile(1.0));
+        }
+
+        private double percentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.min(latencies.length - 1, Math.ceil(p * latencies.length) - 1);
+            return latencies[Math.max(0, index)] / 1000.0;
+        }
+    }
+}
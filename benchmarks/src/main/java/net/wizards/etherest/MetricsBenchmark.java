@@ -0,0 +1,46 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Histogram;
+import net.wizards.etherest.metrics.Metrics;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of the always-on instrumentation under contention: all threads update the same counter and histogram,
+ * as the request threads do for a busy route. {@code atomicLong} is the plain shared counter for comparison.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+    private final Counter counter = Metrics.get().counter("benchmark_requests");
+    private final Histogram histogram = Metrics.get().histogram("benchmark_duration");
+    private final AtomicLong atomicLong = new AtomicLong();
+
+    @Benchmark
+    public void counter() {
+        counter.inc();
+    }
+
+    @Benchmark
+    public long atomicLong() {
+        return atomicLong.incrementAndGet();
+    }
+
+    @Benchmark
+    public void histogram() {
+        histogram.recordSince(System.nanoTime() - 150_000);
+    }
+
+    @Benchmark
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+}
@@ -0,0 +1,41 @@
+package net.wizards.etherest;
+
+import com.google.gson.JsonObject;
+import net.wizards.etherest.http.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Request#from} parsing and query parameter decoding, fed from an in-memory socket.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+    @Param({"get", "get_query", "post_json"})
+    public String kind;
+
+    private Fixtures.StubSocket socket;
+
+    @Setup
+    public void setup() {
+        Fixtures.quietConfig();
+        socket = new Fixtures.StubSocket(Fixtures.named(kind));
+    }
+
+    @Benchmark
+    public Request.Method parse() {
+        Request request = Request.from(socket.reset());
+        request.getResource();
+        return request.getMethod();
+    }
+
+    @Benchmark
+    public JsonObject queryParams() {
+        return Request.from(socket.reset()).getQueryParams();
+    }
+}
@@ -0,0 +1,42 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.http.Response;
+import net.wizards.etherest.http.Responses;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Response#send()} serialization into an in-memory socket for an empty, a short and a stats-sized body.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+    @Param({"0", "16", "16384"})
+    public int bodySize;
+
+    private Fixtures.StubSocket socket;
+    private String body;
+
+    @Setup
+    public void setup() {
+        Fixtures.quietConfig();
+        socket = new Fixtures.StubSocket("");
+        StringBuilder sb = new StringBuilder("{\"data\":\"");
+        while (sb.length() < bodySize - 2) {
+            sb.append(sb.length() % 7 == 0 ? 'ж' : 'x');
+        }
+        body = bodySize == 0 ? null : sb.append("\"}").toString();
+    }
+
+    @Benchmark
+    public int send() {
+        Response response = body == null ? Responses.emptyOk() : Responses.jsonOk(body);
+        response.withKeepAlive(true).withSocket(socket.reset()).send();
+        return socket.written();
+    }
+}
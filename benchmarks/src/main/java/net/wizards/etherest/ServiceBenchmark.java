@@ -0,0 +1,76 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.annotation.RequestMapping;
+import net.wizards.etherest.http.RawRequest;
+import net.wizards.etherest.http.Request;
+import net.wizards.etherest.http.Response;
+import net.wizards.etherest.http.Responses;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full {@link AbstractService} request path without the network: request decoding, route dispatch, handler call
+ * and response encoding.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ServiceBenchmark {
+    @Param({"get", "get_query", "post_json"})
+    public String kind;
+
+    private BenchService service;
+    private RawRequest raw;
+
+    @Setup
+    public void setup() {
+        Fixtures.quietConfig();
+        service = new BenchService();
+        raw = Fixtures.rawRequest(Fixtures.named(kind));
+    }
+
+    @Benchmark
+    public ByteBuffer serve() {
+        return service.serve(raw, "127.0.0.1", true).encode();
+    }
+
+    static final class BenchService extends AbstractService {
+        BenchService() {
+            reconfig();
+        }
+
+        @Override
+        public void reconfigDependencies() {
+        }
+
+        @Override
+        public int getPort() {
+            return 0;
+        }
+
+        @Override
+        public int getPoolSize() {
+            return 1;
+        }
+
+        @RequestMapping("/rest/self_test")
+        public Response selfTest(Request request) {
+            return Responses.plaintextOk("OK");
+        }
+
+        @RequestMapping("/rest/stats")
+        public Response stats(Request request) {
+            return Responses.jsonOk("{\"lang\":\"" + request.getQueryParam("lang") + "\"}");
+        }
+
+        @RequestMapping("/rest/version")
+        public Response version(Request request) {
+            return Responses.plaintextOk(request.getQueryParam("did"));
+        }
+    }
+}
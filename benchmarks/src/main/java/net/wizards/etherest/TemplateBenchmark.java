@@ -0,0 +1,87 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.bot.util.Template;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rendering of the {@code payXXX} message (pay system text with an exchange rate marker followed by the amount
+ * request): the regex based {@code Bot.replaceMarkers} as it was against the compiled {@link Template}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TemplateBenchmark {
+    private static final String PAY_MESSAGE = "<b>Bitcoin</b>\n\nThis is the required information to make money transfer."
+            + "\n\nThis is exchange rate: {net.wizards.etherest.TemplateBenchmark.rate();}\n\n";
+    private static final String SIZE_REQUEST = "Please tell me how much you are going to pay.";
+
+    private static final Pattern markerPatternCall = Pattern.compile("\\{([\\w\\.]+)\\.(\\w+)\\(\\);\\}");
+    private static final Pattern markerPatternProp = Pattern.compile("\\{res\\.([\\w_]+);\\}");
+
+    private Template payMessage;
+    private Template sizeRequest;
+
+    public static String rate() {
+        return "31.4159";
+    }
+
+    @Setup
+    public void setup() {
+        Fixtures.quietConfig();
+        payMessage = Template.compile(PAY_MESSAGE, key -> null);
+        sizeRequest = Template.compile(SIZE_REQUEST, key -> null);
+    }
+
+    @Benchmark
+    public String regex() {
+        return replaceMarkers(PAY_MESSAGE + SIZE_REQUEST);
+    }
+
+    @Benchmark
+    public String compiled() {
+        return Template.renderAll(payMessage, sizeRequest);
+    }
+
+    /**
+     * Bot.replaceMarkers before templates were compiled, minus the resource lookup it never reached.
+     */
+    private static String replaceMarkers(String msg) {
+        Matcher matcher = markerPatternCall.matcher(msg);
+        StringBuffer sb = new StringBuffer();
+        while (matcher.find()) {
+            if (matcher.groupCount() == 2) {
+                try {
+                    Class<?> clazz = Class.forName(matcher.group(1));
+                    Method method = clazz.getMethod(matcher.group(2));
+                    String replacement = (String) method.invoke(null);
+                    if (replacement == null) {
+                        replacement = "";
+                    }
+                    matcher.appendReplacement(sb, replacement);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        matcher.appendTail(sb);
+
+        matcher = markerPatternProp.matcher(sb.toString());
+        StringBuffer sb2 = new StringBuffer();
+        while (matcher.find()) {
+            if (matcher.groupCount() == 2) {
+                matcher.appendReplacement(sb2, "");
+            }
+        }
+        matcher.appendTail(sb2);
+
+        return sb2.toString();
+    }
+}
@@ -0,0 +1,125 @@
+package net.wizards.etherest.bot;
+
+import com.google.gson.Gson;
+import com.pengrad.telegrambot.Callback;
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.response.BaseResponse;
+import net.wizards.etherest.Fixtures;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Update throughput of {@link EtherListener#process} with the talk logging flags off and on. Every thread plays
+ * its own chat through {@code /start}, the wallet edit callback and the wallet address reply, one update per op,
+ * each reading and writing the client in Redis. With the flags on every update logs the serialized update
+ * ({@code logBotRequests}) and the client records read and written ({@code logRedisDataFlow}); the {@code sync}
+ * mode formats and writes them on the handler thread, {@code async} hands them to the disruptor ring buffer as the
+ * service does. Log output goes to {@code etherest-bench.log} in the temp directory.
+ * <p>
+ * Needs Redis at the address in {@code bench_cfg.json}. Bot API requests are answered in-process.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(value = 1, jvmArgsAppend = "-Dlog4j.configurationFile=log4j2-bench.xml")
+public class LoggingBenchmark {
+    private static final Gson gson = new Gson();
+
+    @State(Scope.Benchmark)
+    public static class Listener {
+        @Param({"off", "on"})
+        public String logging;
+
+        @Param({"async", "sync"})
+        public String mode;
+
+        EtherListener listener;
+
+        @Setup
+        public void setup() {
+            // must precede the first logger lookup in this fork
+            System.setProperty("Log4jContextSelector", "async".equals(mode)
+                    ? "org.apache.logging.log4j.core.async.AsyncLoggerContextSelector"
+                    : "org.apache.logging.log4j.core.selector.ClassLoaderContextSelector");
+            if ("on".equals(logging)) {
+                Fixtures.talkConfig();
+            } else {
+                Fixtures.quietConfig();
+            }
+            listener = new EtherListener(new StubBot());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Chat {
+        private static final AtomicInteger chatIds = new AtomicInteger(900_000_000);
+
+        private List<List<Update>> updates;
+        private int next;
+
+        @Setup
+        public void setup() {
+            int chatId = chatIds.incrementAndGet();
+            updates = Arrays.asList(
+                    update(message(chatId, "/start", true)),
+                    update(callback(chatId, "on_wallet_edit")),
+                    update(message(chatId, "0x52908400098527886e0f7030069857d2e4169ee7", false)));
+        }
+
+        List<Update> next() {
+            List<Update> update = updates.get(next);
+            next = (next + 1) % updates.size();
+            return update;
+        }
+    }
+
+    @Benchmark
+    public int process(Listener listener, Chat chat) {
+        return listener.listener.process(chat.next());
+    }
+
+    private static List<Update> update(String json) {
+        return Collections.singletonList(gson.fromJson(json, Update.class));
+    }
+
+    private static String message(int chatId, String text, boolean command) {
+        return "{\"update_id\":1,\"message\":{\"message_id\":1,\"date\":1514764800,"
+                + "\"from\":{\"id\":" + chatId + ",\"first_name\":\"Bench\",\"language_code\":\"en\"},"
+                + "\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"},\"text\":\"" + text + "\""
+                + (command ? ",\"entities\":[{\"type\":\"bot_command\",\"offset\":0,\"length\":" + text.length() + "}]" : "")
+                + "}}";
+    }
+
+    private static String callback(int chatId, String data) {
+        return "{\"update_id\":2,\"callback_query\":{\"id\":\"1\",\"data\":\"" + data + "\","
+                + "\"from\":{\"id\":" + chatId + ",\"first_name\":\"Bench\",\"language_code\":\"en\"},"
+                + "\"message\":{\"message_id\":1,\"date\":1514764800,\"chat\":{\"id\":" + chatId + ",\"type\":\"private\"}}}}";
+    }
+
+    /**
+     * Answers every request at once with an empty successful response.
+     */
+    static class StubBot extends TelegramBot {
+        private static final BaseResponse OK = gson.fromJson("{\"ok\":true}", BaseResponse.class);
+
+        StubBot() {
+            super("0:bench");
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T extends BaseRequest<T, R>, R extends BaseResponse> void execute(
+                T request, Callback<T, R> callback) {
+            callback.onResponse(request, (R) OK);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package net.wizards.etherest.bot.util;
+
+import com.google.gson.JsonSyntaxException;
+import net.wizards.etherest.bot.EtherListener.Expect;
+import net.wizards.etherest.bot.dom.Client;
+import net.wizards.etherest.bot.dom.PaymentClaim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Self-check of the stored record layouts: binary client and claim records ({@link BinaryRecords}) round trip and
+ * reject damaged input, and the {@code hash} storage field sets ({@link HashRecords}) carry exactly the changes.
+ * Needs neither Redis nor a configuration.
+ * <pre>
+ * java -cp benchmarks.jar net.wizards.etherest.bot.util.RecordSelfCheck
+ * </pre>
+ * Exits with status 1 if any check fails.
+ */
+public final class RecordSelfCheck {
+    private static final String WALLET_LOWER = "0x52908400098527886e0f7030069857d2e4169ee7";
+    private static final String WALLET_UPPER = "0x52908400098527886E0F7030069857D2E4169EE7";
+    private static final String WALLET_MIXED = "0x52908400098527886E0F7030069857D2E4169Ee7";
+
+    private int checks;
+    private final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        RecordSelfCheck check = new RecordSelfCheck();
+        check.clientVersions();
+        check.wallets();
+        check.languages();
+        check.claims();
+        check.damagedRecords();
+        check.codecs();
+        check.clientChanges();
+        check.claimChanges();
+        for (String failure : check.failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.println(check.checks + " checks, " + check.failures.size() + " failed");
+        System.exit(check.failures.isEmpty() ? 0 : 1);
+    }
+
+    private void clientVersions() {
+        Client idle = client(123456789, "en", WALLET_LOWER, null);
+        byte[] v1 = BinaryRecords.encodeClient(idle);
+        expect("idle client is written as version 1", v1[0], BinaryRecords.VERSION_1);
+        expect("version 1 round trip", clientRoundTrip(idle), idle.toString());
+
+        for (Expect state : Expect.values()) {
+            Client awaiting = client(123456789, "ru", null, state);
+            byte[] v2 = BinaryRecords.encodeClient(awaiting);
+            expect("client awaiting " + state + " is written as version 2", v2[0], BinaryRecords.VERSION_2);
+            expect("version 2 round trip of " + state, clientRoundTrip(awaiting), awaiting.toString());
+        }
+
+        byte[] gone = concat(new byte[]{BinaryRecords.VERSION_2, 1, 32}, string("NO_SUCH_STATE"));
+        expect("state that no longer exists reads as idle", BinaryRecords.decodeClient(gone).getExpect(), null);
+
+        for (int id : new int[]{0, 1, Integer.MAX_VALUE, -1, Integer.MIN_VALUE}) {
+            Client client = client(id, null, null, null);
+            expect("id " + id + " round trip", clientRoundTrip(client), client.toString());
+        }
+        Client full = new Client.Builder().setId(42).setFirstName("Иван").setLastName("O'Brien \"Jr\"")
+                .setUserName("user_42").setLangCode("uk").setWalletId(WALLET_LOWER).setExpect(Expect.PAY_AMOUNT)
+                .build();
+        expect("all fields round trip", clientRoundTrip(full), full.toString());
+    }
+
+    private void wallets() {
+        String[] wallets = {WALLET_LOWER, WALLET_UPPER, WALLET_MIXED, "0x1234", "not a wallet", "",
+                WALLET_LOWER.substring(2) + "00", "0x52908400098527886g0f7030069857d2e4169ee7"};
+        for (String wallet : wallets) {
+            Client client = client(7, "en", wallet, null);
+            expect("wallet '" + wallet + "' round trip", clientRoundTrip(client), client.toString());
+            PaymentClaim claim = new PaymentClaim();
+            claim.setWalletId(wallet);
+            expect("claim wallet '" + wallet + "' round trip", claimRoundTrip(claim), claim.toString());
+        }
+        int hexSize = BinaryRecords.encodeClient(client(7, null, WALLET_LOWER, null)).length;
+        expect("upper-case wallet is stored as raw bytes",
+                BinaryRecords.encodeClient(client(7, null, WALLET_UPPER, null)).length, hexSize);
+        expect("mixed-case wallet keeps its checksum as text",
+                BinaryRecords.encodeClient(client(7, null, WALLET_MIXED, null)).length > hexSize, true);
+    }
+
+    private void languages() {
+        for (String lang : new String[]{"en", "pt-br", "sv", "sr-latn", "EN", "x"}) {
+            Client client = client(7, lang, null, null);
+            expect("langCode '" + lang + "' round trip", clientRoundTrip(client), client.toString());
+        }
+        expect("known langCode takes one byte",
+                BinaryRecords.encodeClient(client(7, "sv", null, null)).length,
+                BinaryRecords.encodeClient(client(7, null, null, null)).length + 1);
+        rejected("unknown language index", new byte[]{BinaryRecords.VERSION_1, 7, 8, 0x7f});
+    }
+
+    private void claims() {
+        for (Long chatId : new Long[]{0L, 1L, -1L, 1234567890L, -1001234567890L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            PaymentClaim claim = claim(chatId);
+            expect("chatId " + chatId + " round trip", claimRoundTrip(claim), claim.toString());
+        }
+        expect("negative chatId is zigzag-encoded",
+                BinaryRecords.encodeClaim(claim(-1L)).length, BinaryRecords.encodeClaim(claim(1L)).length);
+        for (Double amount : new Double[]{0.0, -0.0, 1.25, 1e-9, Double.MAX_VALUE, Double.NaN}) {
+            PaymentClaim claim = new PaymentClaim();
+            claim.setAmount(amount);
+            expect("amount " + amount + " round trip", claimRoundTrip(claim), claim.toString());
+        }
+        PaymentClaim empty = new PaymentClaim();
+        expect("empty claim round trip", claimRoundTrip(empty), empty.toString());
+    }
+
+    private void damagedRecords() {
+        byte[] client = BinaryRecords.encodeClient(new Client.Builder().setId(300).setFirstName("Ann")
+                .setLangCode("sr-latn").setWalletId(WALLET_UPPER).setExpect(Expect.NEW_WALLET_ID).build());
+        for (int length = 0; length < client.length; length++) {
+            rejected("client truncated to " + length + " of " + client.length + " bytes",
+                    Arrays.copyOf(client, length));
+        }
+        PaymentClaim full = claim(-1001234567890L);
+        full.setWalletId(WALLET_LOWER);
+        full.setPaySystem("qiwi");
+        full.setAmount(2.5);
+        full.setUserName("bo");
+        byte[] claim = BinaryRecords.encodeClaim(full);
+        for (int length = 0; length < claim.length; length++) {
+            byte[] truncated = Arrays.copyOf(claim, length);
+            try {
+                BinaryRecords.decodeClaim(truncated);
+                fail("claim truncated to " + length + " of " + claim.length + " bytes was accepted");
+            } catch (JsonSyntaxException e) {
+                checks++;
+            }
+        }
+        rejected("unsupported version", new byte[]{3, 1, 0});
+        rejected("malformed varint", new byte[]{BinaryRecords.VERSION_1,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0});
+        rejected("string longer than the record", new byte[]{BinaryRecords.VERSION_1, 1, 1, 100, 'a'});
+    }
+
+    private void codecs() {
+        Client client = new Client.Builder().setId(5).setLangCode("en").setWalletId(WALLET_MIXED)
+                .setExpect(Expect.OPERATOR_PASSWORD).build();
+        byte[] json = Codecs.CLIENT.encodeJson(client);
+        byte[] binary = Codecs.CLIENT.encodeBinary(client);
+        expect("JSON is not taken for binary", Codecs.CLIENT.isBinary(json), false);
+        expect("binary is recognized", Codecs.CLIENT.isBinary(binary), true);
+        expect("client codec reads JSON", Codecs.CLIENT.decode(json).toString(), client.toString());
+        expect("client codec reads binary", Codecs.CLIENT.decode(binary).toString(), client.toString());
+        expect("binary is smaller than JSON", binary.length < json.length, true);
+        PaymentClaim claim = claim(-5L);
+        expect("claim codec reads JSON",
+                Codecs.CLAIM.decode(Codecs.CLAIM.encodeJson(claim)).toString(), claim.toString());
+        expect("null encodes to null", Codecs.CLIENT.encodeBinary(null), null);
+        expect("null decodes to null", Codecs.CLIENT.decode(null), null);
+    }
+
+    private void clientChanges() {
+        Client client = new Client.Builder().setId(9).setFirstName("Bo").setLangCode("en")
+                .setExpect(Expect.PAY_AMOUNT).build();
+        Map<String, String> set = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        HashRecords.clientChanges(client, true, set, removed);
+        expect("full write sets the present fields", set.keySet(),
+                keys("id", "firstName", "langCode", "expect"));
+        expect("full write removes the absent bot fields", new ArrayList<>(removed), Arrays.asList("walletId"));
+        expect("hash round trip", HashRecords.client(hmget(set, HashRecords.CLIENT_FIELDS)).toString(),
+                client.toString());
+
+        set.clear();
+        removed.clear();
+        HashRecords.clientChanges(client, false, set, removed);
+        expect("unmodified client writes only identity fields", set.keySet(), keys("id", "firstName"));
+        expect("unmodified client removes nothing", removed.isEmpty(), true);
+
+        set.clear();
+        client.setWalletId(WALLET_LOWER);
+        client.setExpect(null);
+        HashRecords.clientChanges(client, false, set, removed);
+        expect("modified wallet is written", set.get("walletId"), WALLET_LOWER);
+        expect("unmodified langCode is not written", set.containsKey("langCode"), false);
+        expect("cleared state is removed", new ArrayList<>(removed), Arrays.asList("expect"));
+        expect("missing hash reads as no client",
+                HashRecords.client(hmget(new HashMap<>(), HashRecords.CLIENT_FIELDS)), null);
+    }
+
+    private void claimChanges() {
+        PaymentClaim claim = claim(-1001234567890L);
+        claim.setPaySystem("qiwi");
+        Map<String, String> before = HashRecords.claimFields(claim);
+        expect("claim hash round trip", HashRecords.claim(hmget(before, HashRecords.CLAIM_FIELDS)).toString(),
+                claim.toString());
+
+        claim.setAmount(2.5);
+        claim.setPaySystem(null);
+        Map<String, String> set = new HashMap<>();
+        List<String> removed = new ArrayList<>();
+        HashRecords.claimChanges(before, HashRecords.claimFields(claim), set, removed);
+        expect("changed claim fields are set", set, map("amount", "2.5"));
+        expect("cleared claim fields are removed", new ArrayList<>(removed), Arrays.asList("paySystem"));
+
+        set.clear();
+        removed.clear();
+        HashRecords.claimChanges(before, before, set, removed);
+        expect("unchanged claim writes nothing", set.isEmpty() && removed.isEmpty(), true);
+        expect("missing hash reads as no claim",
+                HashRecords.claim(hmget(new HashMap<>(), HashRecords.CLAIM_FIELDS)), null);
+    }
+
+    private static Client client(int id, String lang, String wallet, Expect state) {
+        return new Client.Builder().setId(id).setLangCode(lang).setWalletId(wallet).setExpect(state).build();
+    }
+
+    private static PaymentClaim claim(Long chatId) {
+        PaymentClaim claim = new PaymentClaim();
+        claim.setChatId(chatId);
+        return claim;
+    }
+
+    private static String clientRoundTrip(Client client) {
+        return BinaryRecords.decodeClient(BinaryRecords.encodeClient(client)).toString();
+    }
+
+    private static String claimRoundTrip(PaymentClaim claim) {
+        return BinaryRecords.decodeClaim(BinaryRecords.encodeClaim(claim)).toString();
+    }
+
+    private static List<String> hmget(Map<String, String> hash, String[] fields) {
+        List<String> values = new ArrayList<>();
+        for (String field : fields) {
+            values.add(hash.get(field));
+        }
+        return values;
+    }
+
+    private static Set<String> keys(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+
+    private static Map<String, String> map(String key, String value) {
+        Map<String, String> map = new HashMap<>();
+        map.put(key, value);
+        return map;
+    }
+
+    private static byte[] string(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return concat(new byte[]{(byte) bytes.length}, bytes);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    private void rejected(String what, byte[] record) {
+        try {
+            BinaryRecords.decodeClient(record);
+            fail(what + " was accepted");
+        } catch (JsonSyntaxException e) {
+            checks++;
+        } catch (RuntimeException e) {
+            fail(what + " failed with " + e);
+        }
+    }
+
+    private void expect(String what, Object actual, Object expected) {
+        if (Objects.equals(actual, expected)) {
+            checks++;
+        } else {
+            fail(what + ": expected " + expected + ", got " + actual);
+        }
+    }
+
+    private void fail(String failure) {
+        checks++;
+        failures.add(failure);
+    }
+}
@@ -1,27 +1,33 @@
 package net.wizards.etherest;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
 import com.google.gson.stream.JsonWriter;
-import net.wizards.etherest.annotation.RequestMapping;
 import net.wizards.etherest.database.Stats;
+import net.wizards.etherest.http.HttpParser;
+import net.wizards.etherest.http.RawRequest;
 import net.wizards.etherest.http.Request;
 import net.wizards.etherest.http.Response;
 import net.wizards.etherest.http.Responses;
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Metrics;
+import net.wizards.etherest.trace.Trace;
+import net.wizards.etherest.trace.Tracer;
 import net.wizards.etherest.util.Misc;
+import net.wizards.etherest.util.Workers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -30,93 +36,185 @@ abstract class AbstractService implements Runnable {
     int poolSize = -1;
     ServerSocket serverSocket;
     ExecutorService service;
-    Config config;
-    private Stats stats;
-    private static Map<MappingKey, MappingValue> workers = new HashMap<>();
+    volatile Config config;
+    final Stats.ConnectionStats connectionStats = new Stats.ConnectionStats();
+    private RouteTable routes;
+    private final Counter unmatchedRequests = Metrics.get().counter("rest_unmatched_requests");
     private volatile boolean shuttingDown;
 
+    private static final Gson gson = new Gson();
+    private static final Gson METRICS_GSON = new GsonBuilder().disableHtmlEscaping().create();
+
     final Logger logger = LogManager.getLogger();
     final Marker TAG_CLASS = MarkerManager.getMarker(getClass().getSimpleName());
     private static final Marker TAG_REST = MarkerManager.getMarker("REST_TALK");
 
-    private void initWorkerMappings() {
-        for (final java.lang.reflect.Method method : getClass().getDeclaredMethods()) {
-            if (method.isAnnotationPresent(RequestMapping.class)) {
-                RequestMapping map = method.getAnnotation(RequestMapping.class);
-                for (String resource : map.value()) {
-                    for (Request.Method httpMethod : map.method()) {
-                        workers.put(
-                                new MappingKey(resource, httpMethod),
-                                new MappingValue(method, map.params(), map.produces()));
-                    }
-                }
-            }
-        }
-    }
-
     @Override
     public void run() {
         Thread.currentThread().setName(getDispatcherThreadName());
         logger.info(TAG_CLASS, "Listener started on port " + serverSocket.getLocalPort());
+        if ("nio".equalsIgnoreCase(config.getRestTransport())) {
+            runNonBlocking();
+        } else {
+            runBlocking();
+        }
+        logger.info(TAG_CLASS, "Listener stopped");
+    }
+
+    private void runBlocking() {
         while (!service.isShutdown()) {
             try {
                 final Socket clientSocket = serverSocket.accept();
-                service.submit(() -> {
-                    Thread.currentThread().setName(String.format("rest_worker[%s]", Thread.currentThread().getId()));
-                    Response response = null;
-                    try {
-                        Request request = Request.from(clientSocket);
-                        if (config.isLogRestConnectedClient()) {
-                            logger.debug(TAG_CLASS, String.format("Connected client [%s]", request.getRemoteAddr()));
-                        }
-                        if (config.isLogRestRequests()) {
-                            logger.debug(TAG_REST, Misc.prettyJson(request.getRestParams()));
-                        }
-                        try {
-                            MappingValue mappingValue = workers.get(new MappingKey(request.getResource(), request.getMethod()));
-                            if (request.hasAllQueryParams(mappingValue.requiredParams)) {
-                                response = ((Response) mappingValue.method.invoke(this, request)).withSocket(clientSocket);
-                                response.setContentType(mappingValue.contentType);
-                            } else {
-                                response = Responses.emptyBadRequest().withSocket(clientSocket);
-                            }
-                        } catch (InvocationTargetException e) {
-                            logger.error(TAG_CLASS, "Internal exception", e);
-                            response = Responses.emptyInternalServerError().withSocket(clientSocket);
-                        } catch (Exception e) {
-                            logger.error(TAG_CLASS, "Reflexive call failed", e);
-                            response = Responses.emptyMethodNotAllowed().withSocket(clientSocket);
-                        }
-                    } catch (Exception e) {
-                        logger.error(TAG_CLASS, "Failed to process incoming request", e);
-                        response = Responses.emptyInternalServerError().withSocket(clientSocket);
-                    } finally {
-                        try {
-                            if (response != null) {
-                                response.send();
-                            }
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            logger.error(TAG_CLASS, "Failed to close client socket", e);
+                connectionStats.onAccept();
+                service.submit(() -> serveConnection(clientSocket));
+            } catch (IOException e) {
+                onListenerException(e);
+            }
+        }
+    }
+
+    private void serveConnection(Socket clientSocket) {
+        Thread.currentThread().setName(String.format("rest_worker[%s]", Thread.currentThread().getId()));
+        int maxRequests = config.getRestKeepAliveMaxRequests();
+        // a platform worker would sit on the idle connection between requests, starving new connections
+        boolean keepAliveSupported = Workers.isVirtual(Thread.currentThread());
+        try {
+            clientSocket.setSoTimeout(config.getRestKeepAliveTimeout());
+            InputStream in = clientSocket.getInputStream();
+            String remoteAddr = clientSocket.getInetAddress().getHostAddress();
+            HttpParser parser = newParser();
+            int served = 0;
+            boolean keepAlive = true;
+            while (keepAlive) {
+                RawRequest raw;
+                try {
+                    while ((raw = parser.next()) == null) {
+                        if (parser.fill(in) == -1) {
+                            return;
                         }
                     }
-                });
-            } catch (IOException e) {
-                if (shuttingDown) {
-                    logger.info(TAG_CLASS, "Listener socket exception, shutdown in progress");
-                } else {
-                    logger.error(TAG_CLASS, "Listener socket exception, perhaps shutdown was requested", e);
+                } catch (HttpParser.ParseException e) {
+                    logger.debug(TAG_CLASS, "Rejected HTTP request from {}: {}", remoteAddr, e.getMessage());
+                    Responses.empty(e.getStatus()).withSocket(clientSocket).send();
+                    return;
+                }
+                connectionStats.onRequest(++served > 1);
+                Response response = serve(raw, remoteAddr, keepAliveSupported && served < maxRequests && !isShuttingDown());
+                response.withSocket(clientSocket).send();
+                parser.release();
+                keepAlive = response.isKeepAlive();
+                if (!keepAlive && served >= maxRequests) {
+                    connectionStats.onRequestLimit();
                 }
-                service.shutdown();
             }
+        } catch (SocketTimeoutException e) {
+            connectionStats.onIdleTimeout();
+        } catch (IOException e) {
+            logger.trace(TAG_CLASS, "Client connection failed", e);
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (IOException e) {
+                logger.error(TAG_CLASS, "Failed to close client socket", e);
+            }
+            connectionStats.onClose();
         }
-        logger.info(TAG_CLASS, "Listener stopped");
+    }
+
+    private void runNonBlocking() {
+        NioTransport transport = null;
+        try {
+            transport = new NioTransport(this, serverSocket.getChannel(), config.getRestSelectorThreads());
+            transport.run();
+        } catch (IOException e) {
+            onListenerException(e);
+        } finally {
+            if (transport != null) {
+                transport.shutdown();
+            }
+        }
+    }
+
+    private void onListenerException(IOException e) {
+        if (shuttingDown) {
+            logger.info(TAG_CLASS, "Listener socket exception, shutdown in progress");
+        } else {
+            logger.error(TAG_CLASS, "Listener socket exception, perhaps shutdown was requested", e);
+        }
+        service.shutdown();
+    }
+
+    boolean isShuttingDown() {
+        return shuttingDown;
+    }
+
+    HttpParser newParser() {
+        return new HttpParser(config.getRestMaxHeaderSize(), config.getRestMaxBodySize());
+    }
+
+    Response serve(RawRequest raw, String remoteAddr, boolean keepAliveAllowed) {
+        Response response;
+        Trace trace = Tracer.begin("rest", "http");
+        try {
+            long start = System.nanoTime();
+            Request request = Request.from(raw, remoteAddr);
+            if (trace != null) {
+                trace.setName(request.getMethod() + " " + request.getResource());
+                trace.record("parse", start);
+            }
+            response = process(request)
+                    .withKeepAlive(keepAliveAllowed && request.isKeepAlive())
+                    .withChunking(raw.isHttp11());
+            if (Misc.nvl(config.isRestCompression(), false)) {
+                response.withCoding(request.getAcceptedCoding());
+            }
+        } catch (Exception e) {
+            logger.error(TAG_CLASS, "Failed to process incoming request", e);
+            response = Responses.emptyInternalServerError();
+        } finally {
+            Tracer.end(trace);
+        }
+        return response;
+    }
+
+    private Response process(Request request) {
+        if (config.isLogRestConnectedClient()) {
+            logger.debug(TAG_CLASS, "Connected client [{}]", request.getRemoteAddr());
+        }
+        if (config.isLogRestRequests()) {
+            logger.debug(TAG_REST, () -> Misc.prettyJson(request.getRestParams()));
+        }
+        Response response;
+        RouteTable.Route route = routes.find(request.getMethod(), request.getResource());
+        if (route == null) {
+            logger.debug(TAG_CLASS, "No mapping for {} {}", request.getMethod(), request.getResource());
+            unmatchedRequests.inc();
+            response = Responses.emptyMethodNotAllowed();
+        } else if (!request.hasAllQueryParams(route.requiredParams)) {
+            route.errors.inc();
+            response = Responses.emptyBadRequest();
+        } else {
+            long start = System.nanoTime();
+            try {
+                response = route.handler.handle(request);
+                response.setContentType(route.contentType);
+            } catch (Exception e) {
+                logger.error(TAG_CLASS, "Internal exception", e);
+                route.errors.inc();
+                response = Responses.emptyInternalServerError();
+            } finally {
+                route.latency.recordSince(start);
+                Tracer.record(route.span, start);
+            }
+        }
+        return response;
     }
 
     void reconfig() {
-        initWorkerMappings();
+        if (routes == null) {
+            routes = RouteTable.compile(this);
+        }
         config = Config.get();
-        stats = Stats.getInstance();
         int portTmp = getPort();
         int poolSizeTmp = getPoolSize();
 
@@ -127,10 +225,8 @@ abstract class AbstractService implements Runnable {
             if (portTmp != port) {
                 logger.error(TAG_CLASS, "Can't reconfigure listener port dynamically, restart is required");
             }
-            if (poolSizeTmp != poolSize && service instanceof ThreadPoolExecutor) {
+            if (poolSizeTmp != poolSize && Workers.resize(service, poolSizeTmp)) {
                 poolSize = poolSizeTmp;
-                ((ThreadPoolExecutor) service).setCorePoolSize(poolSizeTmp);
-                ((ThreadPoolExecutor) service).setMaximumPoolSize(poolSizeTmp);
                 logger.info(TAG_CLASS, "Pool size resized to " + poolSize);
             }
         }
@@ -151,22 +247,29 @@ abstract class AbstractService implements Runnable {
         }
     }
 
-    String getStats() {
-        String result = null;
-        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-            JsonWriter writer = new JsonWriter(new OutputStreamWriter(baos,"UTF-8"));
-            writer.setIndent("    ");
-            writer.beginObject();
-            writer.name("executor").jsonValue(new Gson().toJson(Stats.PoolExecutorStats.of(service)));
-            writer.name("memSize").value(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
-            writer.name("stats").jsonValue(new Gson().toJson(stats));
-            writer.endObject();
-            writer.close();
-            result = baos.toString("UTF-8");
-        } catch (IOException e) {
-            logger.error(TAG_CLASS, "Failed to collect service statistics", e);
+    /**
+     * Writes the service statistics as JSON; the stats endpoint streams them straight to the connection.
+     */
+    void writeStats(OutputStream out) throws IOException {
+        JsonWriter writer = new JsonWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        writer.setIndent("    ");
+        writer.beginObject();
+        writer.name("executionMode").value(service instanceof ThreadPoolExecutor ? "platform" : "virtual");
+        if (service instanceof ThreadPoolExecutor) {
+            writer.name("executor").jsonValue(gson.toJson(Stats.PoolExecutorStats.of(service)));
         }
-        return result;
+        writer.name("connections").jsonValue(gson.toJson(connectionStats));
+        writeServiceStats(writer);
+        writer.name("memSize").value(Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        writer.name("metrics").jsonValue(METRICS_GSON.toJson(Metrics.get().snapshot()));
+        writer.endObject();
+        writer.flush();
+    }
+
+    /**
+     * Adds service specific sections to the statistics object.
+     */
+    void writeServiceStats(JsonWriter writer) throws IOException {
     }
 
     public abstract void reconfigDependencies();
@@ -175,47 +278,5 @@ abstract class AbstractService implements Runnable {
 
     public String getDispatcherThreadName() { return "svc_lsnr[disp]"; }
 
-    private static class MappingKey {
-        private String resource;
-        private Request.Method method;
-
-        private MappingKey(String resource, Request.Method method) {
-            this.resource = resource;
-            this.method = method;
-        }
-
-        @Override
-        public boolean equals(Object o) {
-            if (this == o) return true;
-            if (o == null || getClass() != o.getClass()) return false;
-
-            MappingKey that = (MappingKey) o;
-
-            return resource.equals(that.resource) && method == that.method;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = resource.hashCode();
-            result = 31 * result + method.hashCode();
-            return result;
-        }
-
-        @Override
-        public String toString() {
-            return "MappingKey{" +"resource='" + resource + '\'' + ", method=" + method + '}';
-        }
-    }
-
-    private static class MappingValue {
-        private Method method;
-        private String[] requiredParams;
-        private String contentType;
-
-        MappingValue(Method method, String[] requiredParams, String contentType) {
-            this.method = method;
-            this.requiredParams = requiredParams;
-            this.contentType = contentType;
-        }
-    }
+    public String getSelectorThreadName(int index) { return String.format("svc_lsnr[sel%d]", index); }
 }
@@ -42,6 +42,10 @@ public class App {
 
     private App() {}
 
+    static String getConfigFile() {
+        return configFile;
+    }
+
     private static void processParams(String[] args) {
         Options options = new Options();
 
@@ -1,6 +1,7 @@
 package net.wizards.etherest;
 
 import com.google.gson.Gson;
+import net.wizards.etherest.util.Workers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
@@ -9,16 +10,36 @@ import org.apache.logging.log4j.MarkerManager;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import static net.wizards.etherest.util.Misc.nvl;
 
 public class Config {
     private Integer portRestListener;
     private Integer restListenerPoolSize;
+    private String restTransport;
+    private Integer restSelectorThreads;
+    private Integer restKeepAliveTimeout;
+    private Integer restKeepAliveMaxRequests;
+    private Integer restMaxHeaderSize;
+    private Integer restMaxBodySize;
+    private Boolean restCompression;
+    private Integer restCompressionMinSize;
+    private Integer restCompressionLevel;
 
     private String botToken;
     private String botName;
     private String botUsername;
+    private Integer botGlobalRate;
+    private Integer botChatRate;
+    private Integer botChatBurst;
+    private Integer botMaxInFlight;
+    private Integer botSendQueueCapacity;
+    private Integer botSendRetries;
+    private Integer botRetryBackoff;
 
     private String supportedLang;
     private String defaultLang;
@@ -39,13 +60,51 @@ public class Config {
     private String redisHost;
     private Integer redisPort;
     private Integer clientDataExpiry;
+    private Integer clientCacheSize;
+    private Integer clientCacheTtl;
+    private Boolean clientCacheInvalidation;
+    private String clientRecordFormat;
+    private Boolean clientRecordMigration;
+    private Integer clientRecordMigrationBatch;
+    private String clientStorage;
     private String redisPassword;
+    private Integer redisTimeout;
+    private Integer redisPoolMaxTotal;
+    private Integer redisPoolMaxIdle;
+    private Integer redisPoolMinIdle;
+    private Integer redisPoolMaxWait;
+    private Boolean redisPoolTestOnBorrow;
+    private Boolean redisPoolTestWhileIdle;
+    private Integer redisPoolEvictionInterval;
+    private Integer redisPoolMinEvictableIdleTime;
 
     private Boolean parallelMode;
+    private String executionMode;
+    private Integer chatWorkerThreads;
+    private Integer chatMailboxCapacity;
+    private Integer chatMaxPending;
+    private Integer chatSubmitTimeout;
+
+    private String ratePairs;
+    private String rateSource;
+    private String rateSourceUrl;
+    private Map<String, String> rateLocal;
+    private Integer rateTtl;
+    private Integer rateRefreshAhead;
+    private Integer rateMaxStaleness;
+    private Integer rateRetryInterval;
+    private Integer rateFetchTimeout;
+
+    private Boolean traceEnabled;
+    private Double traceSampleRate;
+    private Integer traceBufferSize;
+    private Integer traceSlowThreshold;
 
     private String trustedIp;
 
-    transient private static Config instance;
+    private static final List<Runnable> reloadListeners = new CopyOnWriteArrayList<>();
+
+    private static volatile Config instance;
 
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Config.class.getSimpleName());
@@ -54,6 +113,26 @@ public class Config {
         return parallelMode;
     }
 
+    public String getExecutionMode() {
+        return executionMode;
+    }
+
+    public Integer getChatWorkerThreads() {
+        return chatWorkerThreads;
+    }
+
+    public Integer getChatMailboxCapacity() {
+        return chatMailboxCapacity;
+    }
+
+    public Integer getChatMaxPending() {
+        return chatMaxPending;
+    }
+
+    public Integer getChatSubmitTimeout() {
+        return chatSubmitTimeout;
+    }
+
     public String getOperatorPassword() {
         return operatorPassword;
     }
@@ -62,6 +141,34 @@ public class Config {
         return clientDataExpiry;
     }
 
+    public Integer getClientCacheSize() {
+        return clientCacheSize;
+    }
+
+    public Integer getClientCacheTtl() {
+        return clientCacheTtl;
+    }
+
+    public Boolean isClientCacheInvalidation() {
+        return clientCacheInvalidation;
+    }
+
+    public String getClientRecordFormat() {
+        return clientRecordFormat;
+    }
+
+    public Boolean isClientRecordMigration() {
+        return clientRecordMigration;
+    }
+
+    public Integer getClientRecordMigrationBatch() {
+        return clientRecordMigrationBatch;
+    }
+
+    public String getClientStorage() {
+        return clientStorage;
+    }
+
     public String getDefaultLang() {
         return defaultLang;
     }
@@ -82,12 +189,47 @@ public class Config {
         return restListenerPoolSize;
     }
 
+    String getRestTransport() {
+        return restTransport;
+    }
+
+    Integer getRestSelectorThreads() {
+        return restSelectorThreads;
+    }
+
+    Integer getRestKeepAliveTimeout() {
+        return restKeepAliveTimeout;
+    }
+
+    Integer getRestKeepAliveMaxRequests() {
+        return restKeepAliveMaxRequests;
+    }
+
+    public Integer getRestMaxHeaderSize() {
+        return restMaxHeaderSize;
+    }
+
+    public Integer getRestMaxBodySize() {
+        return restMaxBodySize;
+    }
+
+    public Boolean isRestCompression() {
+        return restCompression;
+    }
+
+    public Integer getRestCompressionMinSize() {
+        return restCompressionMinSize;
+    }
+
+    public Integer getRestCompressionLevel() {
+        return restCompressionLevel;
+    }
+
     String getTrustedIp() {
         return trustedIp;
     }
 
-    private Config(String src) {
-        setConfig(src);
+    private Config() {
     }
 
     public String getBotToken() {
@@ -102,6 +244,34 @@ public class Config {
         return botUsername;
     }
 
+    public Integer getBotGlobalRate() {
+        return botGlobalRate;
+    }
+
+    public Integer getBotChatRate() {
+        return botChatRate;
+    }
+
+    public Integer getBotChatBurst() {
+        return botChatBurst;
+    }
+
+    public Integer getBotMaxInFlight() {
+        return botMaxInFlight;
+    }
+
+    public Integer getBotSendQueueCapacity() {
+        return botSendQueueCapacity;
+    }
+
+    public Integer getBotSendRetries() {
+        return botSendRetries;
+    }
+
+    public Integer getBotRetryBackoff() {
+        return botRetryBackoff;
+    }
+
     String getBuildNumber() {
         return buildNumber;
     }
@@ -138,7 +308,7 @@ public class Config {
         return redisHost;
     }
 
-    public int getRedisPort() {
+    public Integer getRedisPort() {
         return redisPort;
     }
 
@@ -146,20 +316,142 @@ public class Config {
         return redisPassword;
     }
 
-    public static synchronized Config get() {
+    public Integer getRedisTimeout() {
+        return redisTimeout;
+    }
+
+    public Integer getRedisPoolMaxTotal() {
+        return redisPoolMaxTotal;
+    }
+
+    public Integer getRedisPoolMaxIdle() {
+        return redisPoolMaxIdle;
+    }
+
+    public Integer getRedisPoolMinIdle() {
+        return redisPoolMinIdle;
+    }
+
+    public Integer getRedisPoolMaxWait() {
+        return redisPoolMaxWait;
+    }
+
+    public Boolean isRedisPoolTestOnBorrow() {
+        return redisPoolTestOnBorrow;
+    }
+
+    public Boolean isRedisPoolTestWhileIdle() {
+        return redisPoolTestWhileIdle;
+    }
+
+    public Integer getRedisPoolEvictionInterval() {
+        return redisPoolEvictionInterval;
+    }
+
+    public Integer getRedisPoolMinEvictableIdleTime() {
+        return redisPoolMinEvictableIdleTime;
+    }
+
+    public String getRatePairs() {
+        return ratePairs;
+    }
+
+    public String getRateSource() {
+        return rateSource;
+    }
+
+    public String getRateSourceUrl() {
+        return rateSourceUrl;
+    }
+
+    public Map<String, String> getRateLocal() {
+        return rateLocal;
+    }
+
+    public Integer getRateTtl() {
+        return rateTtl;
+    }
+
+    public Integer getRateRefreshAhead() {
+        return rateRefreshAhead;
+    }
+
+    public Integer getRateMaxStaleness() {
+        return rateMaxStaleness;
+    }
+
+    public Integer getRateRetryInterval() {
+        return rateRetryInterval;
+    }
+
+    public Integer getRateFetchTimeout() {
+        return rateFetchTimeout;
+    }
+
+    public Boolean isTraceEnabled() {
+        return traceEnabled;
+    }
+
+    public Double getTraceSampleRate() {
+        return traceSampleRate;
+    }
+
+    public Integer getTraceBufferSize() {
+        return traceBufferSize;
+    }
+
+    public Integer getTraceSlowThreshold() {
+        return traceSlowThreshold;
+    }
+
+    /**
+     * Returns the current configuration snapshot. A snapshot is never modified once published; a reload
+     * publishes a new one, so code that needs consistent settings should read them from one snapshot.
+     */
+    public static Config get() {
+        Config current = instance;
+        return current != null ? current : init();
+    }
+
+    private static synchronized Config init() {
         if (instance == null) {
-            instance = new Config(null);
+            Config builtIn = new Config();
+            builtIn.setFrom(parse(null));
+            instance = builtIn;
         }
         return instance;
     }
 
+    /**
+     * Registers a callback run after each successful {@link #setConfig(String)}.
+     */
+    public static void addReloadListener(Runnable listener) {
+        reloadListeners.add(listener);
+    }
+
     private void setFrom(Config config) {
         portRestListener = nvl(config.getPortRestListener(), portRestListener);
         restListenerPoolSize = nvl(config.getRestListenerPoolSize(), restListenerPoolSize);
+        restTransport = nvl(config.getRestTransport(), restTransport);
+        restSelectorThreads = nvl(config.getRestSelectorThreads(), restSelectorThreads);
+        restKeepAliveTimeout = nvl(config.getRestKeepAliveTimeout(), restKeepAliveTimeout);
+        restKeepAliveMaxRequests = nvl(config.getRestKeepAliveMaxRequests(), restKeepAliveMaxRequests);
+        restMaxHeaderSize = nvl(config.getRestMaxHeaderSize(), restMaxHeaderSize);
+        restMaxBodySize = nvl(config.getRestMaxBodySize(), restMaxBodySize);
+        restCompression = nvl(config.isRestCompression(), restCompression);
+        restCompressionMinSize = nvl(config.getRestCompressionMinSize(), restCompressionMinSize);
+        restCompressionLevel = nvl(config.getRestCompressionLevel(), restCompressionLevel);
 
         botToken = nvl(config.getBotToken(), botToken);
         botName = nvl(config.getBotName(), botName);
         botUsername = nvl(config.getBotUsername(), botUsername);
+        botGlobalRate = nvl(config.getBotGlobalRate(), botGlobalRate);
+        botChatRate = nvl(config.getBotChatRate(), botChatRate);
+        botChatBurst = nvl(config.getBotChatBurst(), botChatBurst);
+        botMaxInFlight = nvl(config.getBotMaxInFlight(), botMaxInFlight);
+        botSendQueueCapacity = nvl(config.getBotSendQueueCapacity(), botSendQueueCapacity);
+        botSendRetries = nvl(config.getBotSendRetries(), botSendRetries);
+        botRetryBackoff = nvl(config.getBotRetryBackoff(), botRetryBackoff);
 
         supportedLang = nvl(config.getSupportedLang(), supportedLang);
         defaultLang = nvl(config.getDefaultLang(), defaultLang);
@@ -178,35 +470,147 @@ public class Config {
         redisHost = nvl(config.getRedisHost(), redisHost);
         redisPort = nvl(config.getRedisPort(), redisPort);
         clientDataExpiry = nvl(config.getClientDataExpiry(), clientDataExpiry);
+        clientCacheSize = nvl(config.getClientCacheSize(), clientCacheSize);
+        clientCacheTtl = nvl(config.getClientCacheTtl(), clientCacheTtl);
+        clientCacheInvalidation = nvl(config.isClientCacheInvalidation(), clientCacheInvalidation);
+        clientRecordFormat = nvl(config.getClientRecordFormat(), clientRecordFormat);
+        clientRecordMigration = nvl(config.isClientRecordMigration(), clientRecordMigration);
+        clientRecordMigrationBatch = nvl(config.getClientRecordMigrationBatch(), clientRecordMigrationBatch);
+        clientStorage = nvl(config.getClientStorage(), clientStorage);
         redisPassword = nvl(config.getRedisPassword(), redisPassword);
+        redisTimeout = nvl(config.getRedisTimeout(), redisTimeout);
+        redisPoolMaxTotal = nvl(config.getRedisPoolMaxTotal(), redisPoolMaxTotal);
+        redisPoolMaxIdle = nvl(config.getRedisPoolMaxIdle(), redisPoolMaxIdle);
+        redisPoolMinIdle = nvl(config.getRedisPoolMinIdle(), redisPoolMinIdle);
+        redisPoolMaxWait = nvl(config.getRedisPoolMaxWait(), redisPoolMaxWait);
+        redisPoolTestOnBorrow = nvl(config.isRedisPoolTestOnBorrow(), redisPoolTestOnBorrow);
+        redisPoolTestWhileIdle = nvl(config.isRedisPoolTestWhileIdle(), redisPoolTestWhileIdle);
+        redisPoolEvictionInterval = nvl(config.getRedisPoolEvictionInterval(), redisPoolEvictionInterval);
+        redisPoolMinEvictableIdleTime = nvl(config.getRedisPoolMinEvictableIdleTime(), redisPoolMinEvictableIdleTime);
+
+        ratePairs = nvl(config.getRatePairs(), ratePairs);
+        rateSource = nvl(config.getRateSource(), rateSource);
+        rateSourceUrl = nvl(config.getRateSourceUrl(), rateSourceUrl);
+        rateLocal = nvl(config.getRateLocal(), rateLocal);
+        rateTtl = nvl(config.getRateTtl(), rateTtl);
+        rateRefreshAhead = nvl(config.getRateRefreshAhead(), rateRefreshAhead);
+        rateMaxStaleness = nvl(config.getRateMaxStaleness(), rateMaxStaleness);
+        rateRetryInterval = nvl(config.getRateRetryInterval(), rateRetryInterval);
+        rateFetchTimeout = nvl(config.getRateFetchTimeout(), rateFetchTimeout);
+
+        traceEnabled = nvl(config.isTraceEnabled(), traceEnabled);
+        traceSampleRate = nvl(config.getTraceSampleRate(), traceSampleRate);
+        traceBufferSize = nvl(config.getTraceBufferSize(), traceBufferSize);
+        traceSlowThreshold = nvl(config.getTraceSlowThreshold(), traceSlowThreshold);
 
         trustedIp = nvl(config.getTrustedIp(), trustedIp);
 
         parallelMode = nvl(config.isParallelMode(), parallelMode);
+        executionMode = nvl(config.getExecutionMode(), executionMode);
+        chatWorkerThreads = nvl(config.getChatWorkerThreads(), chatWorkerThreads);
+        chatMailboxCapacity = nvl(config.getChatMailboxCapacity(), chatMailboxCapacity);
+        chatMaxPending = nvl(config.getChatMaxPending(), chatMaxPending);
+        chatSubmitTimeout = nvl(config.getChatSubmitTimeout(), chatSubmitTimeout);
 
         buildNumber = nvl(config.getBuildNumber(), buildNumber);
     }
 
+    /**
+     * Builds a new snapshot from the built-in defaults overridden by the file (the defaults alone if
+     * {@code fileName} is {@code null}), validates it and publishes it, then runs the reload listeners. Keys
+     * removed from the file thus fall back to their defaults. If the file can't be read or the result is invalid,
+     * the current snapshot stays in effect.
+     */
     public void setConfig(String fileName) {
+        synchronized (Config.class) {
+            Config next = new Config();
+            next.setFrom(parse(null));
+            if (fileName != null) {
+                next.setFrom(parse(fileName));
+            }
+            List<String> problems = next.validate();
+            if (!problems.isEmpty()) {
+                logger.error(TAG_CLASS, "Configuration rejected: " + String.join("; ", problems));
+                throw new RuntimeException("Configuration exception: " + String.join("; ", problems));
+            }
+            instance = next;
+        }
+        for (Runnable listener : reloadListeners) {
+            try {
+                listener.run();
+            } catch (Exception e) {
+                logger.error(TAG_CLASS, "Failed to apply configuration change", e);
+            }
+        }
+    }
+
+    private static Config parse(String fileName) {
         if (fileName == null) {
             try {
-                setFrom(new Gson().fromJson(
-                        new InputStreamReader(getClass().getResourceAsStream("/etherest_cfg.json"),
-                                StandardCharsets.UTF_8), Config.class));
+                return new Gson().fromJson(
+                        new InputStreamReader(Config.class.getResourceAsStream("/etherest_cfg.json"),
+                                StandardCharsets.UTF_8), Config.class);
             } catch (Exception e) {
                 logger.error(TAG_CLASS, "Error setting built-in configuration", e);
                 throw new RuntimeException("Fallback parameters are corrupted or missing");
             }
         } else {
-            try {
-                setFrom(new Gson().fromJson(new InputStreamReader(
-                        new FileInputStream(fileName), StandardCharsets.UTF_8), Config.class));
+            try (InputStreamReader in = new InputStreamReader(new FileInputStream(fileName), StandardCharsets.UTF_8)) {
+                return new Gson().fromJson(in, Config.class);
             } catch (Exception e) {
                 logger.error(TAG_CLASS, "Error setting external configuration", e);
-                logger.info(TAG_CLASS, "Effective parameters: " + new Gson().toJson(this));
+                logger.info(TAG_CLASS, "Effective parameters: " + new Gson().toJson(instance));
                 throw new RuntimeException("Configuration exception: config corrupted or not found");
             }
         }
     }
 
+    /**
+     * Returns the problems that keep this snapshot from being published, empty if there are none.
+     */
+    private List<String> validate() {
+        List<String> problems = new ArrayList<>();
+        positive(problems, "portRestListener", portRestListener);
+        positive(problems, "restListenerPoolSize", restListenerPoolSize);
+        positive(problems, "restSelectorThreads", restSelectorThreads);
+        positive(problems, "restKeepAliveTimeout", restKeepAliveTimeout);
+        positive(problems, "restKeepAliveMaxRequests", restKeepAliveMaxRequests);
+        positive(problems, "restMaxHeaderSize", restMaxHeaderSize);
+        positive(problems, "restMaxBodySize", restMaxBodySize);
+        positive(problems, "chatWorkerThreads", chatWorkerThreads);
+        positive(problems, "redisPort", redisPort);
+        positive(problems, "redisPoolMaxTotal", redisPoolMaxTotal);
+        positive(problems, "botGlobalRate", botGlobalRate);
+        positive(problems, "botChatRate", botChatRate);
+        if (restTransport != null && !restTransport.equalsIgnoreCase("blocking") && !restTransport.equalsIgnoreCase("nio")) {
+            problems.add("restTransport must be blocking or nio");
+        }
+        if (executionMode != null && !executionMode.equalsIgnoreCase(Workers.MODE_PLATFORM)
+                && !executionMode.equalsIgnoreCase(Workers.MODE_VIRTUAL)) {
+            problems.add("executionMode must be platform or virtual");
+        }
+        if (clientRecordFormat != null && !clientRecordFormat.equalsIgnoreCase("json")
+                && !clientRecordFormat.equalsIgnoreCase("binary")) {
+            problems.add("clientRecordFormat must be json or binary");
+        }
+        if (clientStorage != null && !clientStorage.equalsIgnoreCase("string") && !clientStorage.equalsIgnoreCase("hash")) {
+            problems.add("clientStorage must be string or hash");
+        }
+        if (restCompressionLevel != null && (restCompressionLevel < -1 || restCompressionLevel > 9)) {
+            problems.add("restCompressionLevel must be -1..9");
+        }
+        if (traceSampleRate != null && (traceSampleRate < 0 || traceSampleRate > 1)) {
+            problems.add("traceSampleRate must be 0..1");
+        }
+        if (redisHost == null || redisHost.isEmpty()) {
+            problems.add("redisHost is missing");
+        }
+        return problems;
+    }
+
+    private static void positive(List<String> problems, String name, Integer value) {
+        if (value == null || value <= 0) {
+            problems.add(name + " must be positive");
+        }
+    }
 }
@@ -0,0 +1,261 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.http.HttpParser;
+import net.wizards.etherest.http.RawRequest;
+import net.wizards.etherest.http.Response;
+import net.wizards.etherest.http.Responses;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Non-blocking front end for {@link AbstractService}: the dispatcher thread accepts connections and hands them
+ * over to selector threads, which frame requests and pass complete ones to the service worker pool.
+ */
+final class NioTransport {
+    private final AbstractService owner;
+    private final ServerSocketChannel serverChannel;
+    private final SelectorLoop[] loops;
+    private final long idleTimeout;
+    private final int maxRequests;
+
+    private static final Marker TAG_NIO = MarkerManager.getMarker("NIO");
+
+    NioTransport(AbstractService owner, ServerSocketChannel serverChannel, int selectorThreads) throws IOException {
+        this.owner = owner;
+        this.serverChannel = serverChannel;
+        this.idleTimeout = owner.config.getRestKeepAliveTimeout();
+        this.maxRequests = owner.config.getRestKeepAliveMaxRequests();
+        this.loops = new SelectorLoop[Math.max(1, selectorThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new SelectorLoop(owner.getSelectorThreadName(i));
+        }
+    }
+
+    void run() throws IOException {
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+        int next = 0;
+        while (!owner.service.isShutdown()) {
+            SocketChannel channel = serverChannel.accept();
+            owner.connectionStats.onAccept();
+            loops[next].register(channel);
+            next = (next + 1) % loops.length;
+        }
+    }
+
+    void shutdown() {
+        for (SelectorLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private final class SelectorLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private long lastSweep = System.currentTimeMillis();
+
+        SelectorLoop(String threadName) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, threadName);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    channel.configureBlocking(false);
+                    channel.register(selector, SelectionKey.OP_READ, new Connection(this, channel));
+                } catch (IOException e) {
+                    owner.logger.error(TAG_NIO, "Failed to register client channel", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(idleTimeout > 0 ? Math.min(idleTimeout, 1000) : 0);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read(key);
+                            } else if (key.isWritable()) {
+                                connection.write(key);
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            owner.logger.trace(TAG_NIO, "Client channel failed", e);
+                            connection.close(key);
+                        }
+                    }
+                    sweepIdle();
+                } catch (IOException e) {
+                    owner.logger.error(TAG_NIO, "Selector failure", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close(key);
+            }
+            closeQuietly(selector);
+        }
+
+        private void sweepIdle() {
+            long now = System.currentTimeMillis();
+            if (idleTimeout <= 0 || now - lastSweep < Math.min(idleTimeout, 1000)) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (!connection.inFlight && now - connection.lastActive > idleTimeout) {
+                    owner.connectionStats.onIdleTimeout();
+                    connection.close(key);
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        private final SelectorLoop loop;
+        private final SocketChannel channel;
+        private final String remoteAddr;
+        private final HttpParser parser = owner.newParser();
+        private ByteBuffer[] out;
+        private int served;
+        private boolean keepAlive = true;
+        private boolean inFlight;
+        private boolean closed;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(SelectorLoop loop, SocketChannel channel) throws IOException {
+            this.loop = loop;
+            this.channel = channel;
+            this.remoteAddr = ((InetSocketAddress) channel.getRemoteAddress()).getAddress().getHostAddress();
+        }
+
+        void read(SelectionKey key) throws IOException {
+            if (channel.read(parser.buffer()) == -1) {
+                close(key);
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            dispatchNext(key);
+        }
+
+        /**
+         * Hands the next buffered request over to the worker pool. Pipelined requests stay in the parser buffer
+         * until the response to the current one has been written, which keeps responses in request order.
+         */
+        private void dispatchNext(SelectionKey key) {
+            RawRequest raw;
+            try {
+                raw = parser.next();
+            } catch (HttpParser.ParseException e) {
+                owner.logger.debug(TAG_NIO, "Rejected HTTP request from {}: {}", remoteAddr, e.getMessage());
+                respond(key, Responses.empty(e.getStatus()).encodeBuffers(), false);
+                return;
+            }
+            if (raw == null) {
+                key.interestOps(SelectionKey.OP_READ);
+                return;
+            }
+            owner.connectionStats.onRequest(++served > 1);
+            boolean keepAliveAllowed = served < maxRequests && !owner.isShuttingDown();
+            inFlight = true;
+            key.interestOps(0);
+            try {
+                owner.service.submit(() -> {
+                    Thread.currentThread().setName(String.format("rest_worker[%s]", Thread.currentThread().getId()));
+                    try {
+                        Response response = owner.serve(raw, remoteAddr, keepAliveAllowed);
+                        ByteBuffer[] encoded = response.encodeBuffers();
+                        loop.execute(() -> respond(key, encoded, response.isKeepAlive()));
+                    } catch (RuntimeException e) {
+                        owner.logger.error(TAG_NIO, "Failed to serve request from " + remoteAddr, e);
+                        ByteBuffer[] encoded = Responses.emptyInternalServerError().encodeBuffers();
+                        loop.execute(() -> respond(key, encoded, false));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(key);
+            }
+        }
+
+        private void respond(SelectionKey key, ByteBuffer[] encoded, boolean keepAlive) {
+            this.out = encoded;
+            this.keepAlive = keepAlive;
+            inFlight = true;
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        void write(SelectionKey key) throws IOException {
+            channel.write(out);
+            if (!out[out.length - 1].hasRemaining()) {
+                out = null;
+                inFlight = false;
+                lastActive = System.currentTimeMillis();
+                parser.release();
+                if (keepAlive) {
+                    dispatchNext(key);
+                } else {
+                    if (served >= maxRequests) {
+                        owner.connectionStats.onRequestLimit();
+                    }
+                    close(key);
+                }
+            }
+        }
+
+        void close(SelectionKey key) {
+            if (!closed) {
+                closed = true;
+                key.cancel();
+                closeQuietly(channel);
+                owner.connectionStats.onClose();
+            }
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception ignored) {
+        }
+    }
+}
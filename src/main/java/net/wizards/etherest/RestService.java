@@ -1,37 +1,60 @@
 package net.wizards.etherest;
 
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
 import net.wizards.etherest.annotation.RequestMapping;
 import net.wizards.etherest.bot.EtherBot;
+import net.wizards.etherest.bot.rate.ExchangeRates;
+import net.wizards.etherest.bot.util.Db;
+import net.wizards.etherest.database.Redis;
 import net.wizards.etherest.http.Request;
 import net.wizards.etherest.http.Response;
 import net.wizards.etherest.http.Responses;
+import net.wizards.etherest.metrics.Metrics;
+import net.wizards.etherest.metrics.PrometheusWriter;
+import net.wizards.etherest.trace.Tracer;
+import net.wizards.etherest.util.Workers;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
-import java.net.ServerSocket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 
 class RestService extends AbstractService {
-    private Set<String> localIpAddresses;
+    private volatile Set<String> localIpAddresses = Collections.emptySet();
     private ScheduledExecutorService scheduler;
 
     private static RestService instance;
+    private static final Gson gson = new Gson();
     private static final Marker TAG_EXEC = MarkerManager.getMarker("EXEC");
 
     private RestService() throws IOException {
         reconfig();
-        this.serverSocket = new ServerSocket(port);
-        service = Executors.newFixedThreadPool(poolSize);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        this.serverSocket = serverChannel.socket();
+        service = Workers.newPool(config.getExecutionMode(), poolSize, "rest_worker[%d]");
+        if (service instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) service;
+            Metrics.get().gauge("rest_executor_active", executor::getActiveCount);
+            Metrics.get().gauge("rest_executor_pool_size", executor::getPoolSize);
+            Metrics.get().gauge("rest_executor_queued", () -> executor.getQueue().size());
+            Metrics.get().counter("rest_executor_completed", executor::getCompletedTaskCount);
+        }
         scheduler = Executors.newScheduledThreadPool(5);
+        Config.addReloadListener(this::reconfig);
     }
 
     static synchronized RestService getInstance() throws IOException {
@@ -43,21 +66,24 @@ class RestService extends AbstractService {
 
     @Override
     public void reconfigDependencies() {
+        Set<String> addresses = new HashSet<>();
         try {
-            localIpAddresses = new HashSet<>();
             Enumeration<NetworkInterface> networkInterfaces =  NetworkInterface.getNetworkInterfaces();
             while (networkInterfaces.hasMoreElements()) {
-                localIpAddresses.addAll(
+                addresses.addAll(
                         networkInterfaces.nextElement()
                                 .getInterfaceAddresses()
                                 .stream()
                                 .map(a -> a.getAddress().getHostAddress())
                                 .collect(Collectors.toList()));
             }
-            localIpAddresses.addAll(Arrays.stream(config.getTrustedIp().split(",\\s*")).collect(Collectors.toSet()));
+            addresses.addAll(Arrays.stream(config.getTrustedIp().split(",\\s*")).collect(Collectors.toSet()));
         } catch (SocketException e) {
             logger.error(TAG_CLASS, "Failed to enumerate local network interfaces. REST service control disabled.", e);
+            addresses.clear();
         }
+        // published complete, requests check it concurrently with a reload
+        localIpAddresses = Collections.unmodifiableSet(addresses);
     }
 
     @Override
@@ -76,11 +102,25 @@ class RestService extends AbstractService {
         return "rest_lsnr[disp]";
     }
 
+    @Override
+    public String getSelectorThreadName(int index) {
+        return String.format("rest_lsnr[sel%d]", index);
+    }
+
     @Override
     public int getPoolSize() {
         return config.getRestListenerPoolSize();
     }
 
+    @Override
+    void writeServiceStats(JsonWriter writer) throws IOException {
+        writer.name("clientCache").jsonValue(gson.toJson(Db.getClientCacheStats()));
+        writer.name("recordMigration").jsonValue(gson.toJson(Db.getRecordMigrationStats()));
+        writer.name("botSender").jsonValue(gson.toJson(EtherBot.get().getSenderStats()));
+        writer.name("exchangeRates").jsonValue(gson.toJson(ExchangeRates.get().getStats()));
+        writer.name("redisPool").jsonValue(gson.toJson(Redis.getInstance().getPoolStats()));
+    }
+
     private boolean addressAllowed(String inetAddress) {
         return localIpAddresses.contains(inetAddress);
     }
@@ -110,12 +150,63 @@ class RestService extends AbstractService {
         }
     }
 
+    /**
+     * Re-reads the config file and publishes it if it's valid. Bad config leaves the running one in effect.
+     */
+    @SuppressWarnings("unused")
+    @RequestMapping(value="/rest/reload", produces = "text/plain")
+    public Response reload(Request request) {
+        logger.info(TAG_EXEC, request.getResource());
+        if (addressAllowed(request.getRemoteAddr())) {
+            String configFile = App.getConfigFile();
+            if (configFile == null) {
+                return Responses.emptyBadRequest();
+            }
+            try {
+                Config.get().setConfig(configFile);
+            } catch (RuntimeException e) {
+                return Responses.plaintextBadRequest(e.getMessage());
+            }
+            return Responses.plaintextOk("OK");
+        } else {
+            return Responses.emptyForbidden();
+        }
+    }
+
     @SuppressWarnings("unused")
     @RequestMapping(value="/rest/stats")
     public Response stats(Request request) {
         logger.info(TAG_EXEC, request.getResource());
         if (addressAllowed(request.getRemoteAddr())) {
-            return Responses.jsonOk(getStats());
+            return Responses.streamOk(this::writeStats);
+        } else {
+            return Responses.emptyForbidden();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @RequestMapping(value="/rest/metrics", method = Request.Method.GET, produces = PrometheusWriter.CONTENT_TYPE)
+    public Response metrics(Request request) {
+        if (addressAllowed(request.getRemoteAddr())) {
+            return Responses.streamOk(out -> new PrometheusWriter(out).write(Metrics.get()));
+        } else {
+            return Responses.emptyForbidden();
+        }
+    }
+
+    @SuppressWarnings("unused")
+    @RequestMapping(value="/rest/traces", method = Request.Method.GET)
+    public Response traces(Request request) {
+        if (addressAllowed(request.getRemoteAddr())) {
+            long minMillis;
+            int limit;
+            try {
+                minMillis = Long.parseLong(request.getQueryParam("minMillis", String.valueOf(config.getTraceSlowThreshold())));
+                limit = Integer.parseInt(request.getQueryParam("limit", "50"));
+            } catch (NumberFormatException e) {
+                return Responses.emptyBadRequest();
+            }
+            return Responses.jsonOk(gson.toJson(Tracer.slowest(minMillis, limit)));
         } else {
             return Responses.emptyForbidden();
         }
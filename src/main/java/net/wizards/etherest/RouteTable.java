@@ -0,0 +1,111 @@
+package net.wizards.etherest;
+
+import net.wizards.etherest.annotation.RequestMapping;
+import net.wizards.etherest.http.Request;
+import net.wizards.etherest.http.Response;
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Histogram;
+import net.wizards.etherest.metrics.Metrics;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Immutable dispatch table of {@link RequestMapping} handlers. Each handler is compiled once into a direct
+ * {@link Handler} bound to the service instance, so a lookup allocates nothing and a call involves no reflection.
+ */
+final class RouteTable {
+    private final EnumMap<Request.Method, Map<String, Route>> routes;
+
+    private static final MethodType HANDLER_TYPE = MethodType.methodType(Response.class, Request.class);
+
+    private RouteTable(EnumMap<Request.Method, Map<String, Route>> routes) {
+        this.routes = routes;
+    }
+
+    static RouteTable compile(Object service) {
+        Map<Request.Method, Map<String, Route>> draft = new HashMap<>();
+        for (Method method : service.getClass().getDeclaredMethods()) {
+            RequestMapping map = method.getAnnotation(RequestMapping.class);
+            if (map == null) {
+                continue;
+            }
+            Handler handler = bind(service, method);
+            for (String resource : map.value()) {
+                Route route = new Route(handler, map.params(), map.produces(), resource);
+                for (Request.Method httpMethod : map.method()) {
+                    draft.computeIfAbsent(httpMethod, m -> new HashMap<>()).put(resource, route);
+                }
+            }
+        }
+        EnumMap<Request.Method, Map<String, Route>> routes = new EnumMap<>(Request.Method.class);
+        draft.forEach((method, byResource) -> routes.put(method, Collections.unmodifiableMap(byResource)));
+        return new RouteTable(routes);
+    }
+
+    Route find(Request.Method method, String resource) {
+        Map<String, Route> byResource = routes.get(method);
+        return byResource == null ? null : byResource.get(resource);
+    }
+
+    private static Handler bind(Object service, Method method) {
+        if (method.getReturnType() != Response.class
+                || method.getParameterCount() != 1 || method.getParameterTypes()[0] != Request.class) {
+            throw new IllegalStateException("Request mapping must be Response m(Request): " + method);
+        }
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "handle",
+                    MethodType.methodType(Handler.class, service.getClass()),
+                    HANDLER_TYPE, lookup.unreflect(method), HANDLER_TYPE);
+            return (Handler) site.getTarget().invoke(service);
+        } catch (Throwable e) {
+            // not accessible for a generated class (e.g. private handler), fall back to a bound method handle
+            try {
+                method.setAccessible(true);
+                MethodHandle handle = lookup.unreflect(method).bindTo(service).asType(HANDLER_TYPE);
+                return request -> {
+                    try {
+                        return (Response) handle.invokeExact(request);
+                    } catch (Exception | Error ex) {
+                        throw ex;
+                    } catch (Throwable t) {
+                        throw new RuntimeException(t);
+                    }
+                };
+            } catch (IllegalAccessException ex) {
+                throw new IllegalStateException("Can't compile request mapping " + method, ex);
+            }
+        }
+    }
+
+    interface Handler {
+        Response handle(Request request) throws Exception;
+    }
+
+    static final class Route {
+        final Handler handler;
+        final String[] requiredParams;
+        final String contentType;
+        final Histogram latency;
+        final Counter errors;
+        final String span;
+
+        private Route(Handler handler, String[] requiredParams, String contentType, String resource) {
+            this.handler = handler;
+            this.requiredParams = requiredParams;
+            this.contentType = contentType;
+            this.latency = Metrics.get().histogram("rest_request_duration", "route", resource);
+            this.errors = Metrics.get().counter("rest_request_errors", "route", resource);
+            this.span = "dispatch " + resource;
+        }
+    }
+}
@@ -3,26 +3,52 @@ package net.wizards.etherest.bot;
 
 import com.pengrad.telegrambot.TelegramBot;
 import net.wizards.etherest.Config;
+import net.wizards.etherest.bot.rate.ExchangeRates;
+import net.wizards.etherest.database.Stats;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import java.util.concurrent.TimeUnit;
+
 public class EtherBot {
     private static EtherBot instance;
     private static TelegramBot bot;
-    private static Config cfg = Config.get();
+    private EtherListener listener;
 
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(EtherBot.class.getSimpleName());
 
+    private static final long HTTP_TIMEOUT = 75;
+
     private EtherBot(String botToken){
-        bot = new TelegramBot(botToken);
+        bot = new TelegramBot.Builder(botToken).okHttpClient(httpClient()).build();
+    }
+
+    /**
+     * One connection pool for long polling and all outbound requests, sized for the sender's in-flight limit.
+     */
+    private static OkHttpClient httpClient() {
+        int maxRequests = Config.get().getBotMaxInFlight() + 1;
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxRequests);
+        dispatcher.setMaxRequestsPerHost(maxRequests);
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(maxRequests, 5, TimeUnit.MINUTES))
+                .connectTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
+                .writeTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
+                .readTimeout(HTTP_TIMEOUT, TimeUnit.SECONDS)
+                .build();
     }
 
     public static synchronized EtherBot get() {
         if (instance == null) {
-            instance = new EtherBot(cfg.getBotToken());
+            instance = new EtherBot(Config.get().getBotToken());
         }
         return instance;
     }
@@ -30,19 +56,29 @@ public class EtherBot {
     @Override
     public String toString() {
         return "{"
-                + "\"name\": \""+ cfg.getBotName() + "\""
-                + ",\"userName\": \""+ cfg.getBotUsername() + "\""
-                + ",\"token\": \""+ cfg.getBotToken() + "\""
+                + "\"name\": \""+ Config.get().getBotName() + "\""
+                + ",\"userName\": \""+ Config.get().getBotUsername() + "\""
+                + ",\"token\": \""+ Config.get().getBotToken() + "\""
                 + "}";
     }
 
     public void run() {
-        bot.setUpdatesListener(new EtherListener(bot));
+        ExchangeRates.get();
+        listener = new EtherListener(bot);
+        bot.setUpdatesListener(listener);
         logger.info(TAG_CLASS, "Bot started: " + this);
     }
 
+    public Stats.SenderStats getSenderStats() {
+        return listener == null ? null : listener.getSenderStats();
+    }
+
     public void shutdown() {
         bot.removeGetUpdatesListener();
+        if (listener != null) {
+            listener.shutdown();
+        }
+        ExchangeRates.get().shutdown();
         logger.info(TAG_CLASS, "Bot stopped: " + this);
     }
 }
@@ -8,6 +8,7 @@ import com.pengrad.telegrambot.model.request.ParseMode;
 import com.pengrad.telegrambot.request.EditMessageText;
 import com.pengrad.telegrambot.request.SendMessage;
 import net.wizards.etherest.Config;
+import net.wizards.etherest.bot.annotation.Awaits;
 import net.wizards.etherest.bot.annotation.Callback;
 import net.wizards.etherest.bot.annotation.Command;
 import net.wizards.etherest.bot.annotation.Reply;
@@ -17,6 +18,14 @@ import net.wizards.etherest.bot.dom.Resources;
 import net.wizards.etherest.bot.util.Bot;
 import net.wizards.etherest.bot.util.Db;
 import net.wizards.etherest.bot.util.Ethereum;
+import net.wizards.etherest.database.Stats;
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Histogram;
+import net.wizards.etherest.metrics.Metrics;
+import net.wizards.etherest.trace.Trace;
+import net.wizards.etherest.trace.Tracer;
+import net.wizards.etherest.util.SerialDispatcher;
+import net.wizards.etherest.util.Workers;
 import net.wizards.etherest.util.Misc;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -27,14 +36,11 @@ import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
 
 import static net.wizards.etherest.util.Misc.nvl;
 
 public class EtherListener implements UpdatesListener {
-    private final TelegramBot bot;
-    private Config cfg;
+    private final Sender sender;
     private Resources res;
     private Set<Long> operators;
     private UpdateDispatcher updateDispatcher;
@@ -43,16 +49,21 @@ public class EtherListener implements UpdatesListener {
     private static Map<MappingKey, MappingValue> cbWorkers = new HashMap<>();
     private static Map<MappingKey, MappingValue> replyWorkers = new HashMap<>();
 
+    private static final Counter unknownCommands = Metrics.get().counter("bot_unknown_updates", "type", "command");
+    private static final Counter unknownCallbacks = Metrics.get().counter("bot_unknown_updates", "type", "callback");
+    private static final Counter unknownReplies = Metrics.get().counter("bot_unknown_updates", "type", "reply");
+
+    private static final Gson gson = new Gson();
+
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(EtherBot.class.getSimpleName());
 
     EtherListener(TelegramBot bot) {
-        this.bot = bot;
-        cfg = Config.get();
+        this.sender = new Sender(bot);
         initWorkerMappings();
         res = Resources.get();
         operators = Db.getOperators();
-        if (cfg.isParallelMode()) {
+        if (Config.get().isParallelMode()) {
             updateDispatcher = new UpdateDispatcher();
         }
     }
@@ -62,31 +73,45 @@ public class EtherListener implements UpdatesListener {
             if (method.isAnnotationPresent(Command.class)) {
                 Command cmd = method.getAnnotation(Command.class);
                 for (String value : cmd.value()) {
-                    cmdWorkers.put(new MappingKey(value), new MappingValue(method));
+                    cmdWorkers.put(new MappingKey(value), new MappingValue(method, "command", value));
                 }
             } else if (method.isAnnotationPresent(Callback.class)) {
                 Callback callback = method.getAnnotation(Callback.class);
                 for (String value : callback.value()) {
-                    cbWorkers.put(new MappingKey(value), new MappingValue(method));
+                    cbWorkers.put(new MappingKey(value), new MappingValue(method, "callback", value));
                 }
             } else if (method.isAnnotationPresent(Reply.class)) {
                 Reply reply = method.getAnnotation(Reply.class);
                 for (Expect value : reply.value()) {
-                    replyWorkers.put(new MappingKey(value), new MappingValue(method));
+                    replyWorkers.put(new MappingKey(value), new MappingValue(method, "reply", value.name().toLowerCase()));
+                }
+            }
+        }
+        for (Map<MappingKey, MappingValue> workers : Arrays.asList(cmdWorkers, cbWorkers, replyWorkers)) {
+            for (MappingValue worker : workers.values()) {
+                if (worker.next != null && !replyWorkers.containsKey(new MappingKey(worker.next))) {
+                    logger.warn(TAG_CLASS, worker.span + " awaits " + worker.next + ", which has no reply handler");
                 }
             }
         }
     }
 
+    /**
+     * Confirms updates only up to the last one accepted by the dispatcher; once a chat's mailbox rejects an
+     * update, the rest of the batch is left to be delivered again by the next getUpdates.
+     */
     @Override
     public int process(List<Update> updates) {
-        Gson gson = new Gson();
-        for (Update update : updates) {
-            if (cfg.isLogBotRequests()) {
-                logger.info(TAG_CLASS, "Processing request: " + gson.toJson(update));
+        for (int i = 0; i < updates.size(); i++) {
+            Update update = updates.get(i);
+            if (Config.get().isLogBotRequests()) {
+                logger.info(TAG_CLASS, () -> "Processing request: " + gson.toJson(update));
             }
-            if (cfg.isParallelMode()) {
-                updateDispatcher.submit(update);
+            if (updateDispatcher != null) {
+                if (!updateDispatcher.submit(update)) {
+                    logger.warn(TAG_CLASS, "{} update(s) left for redelivery", updates.size() - i);
+                    return update.updateId() - 1;
+                }
             } else {
                 processUpdate(update);
             }
@@ -95,11 +120,34 @@ public class EtherListener implements UpdatesListener {
     }
 
     private void processUpdate(Update update) {
+        Trace trace = Tracer.begin("update", update.callbackQuery() != null ? "callback" : "message");
+        try {
+            handleUpdate(update);
+        } finally {
+            Tracer.end(trace);
+        }
+    }
+
+    private void handleUpdate(Update update) {
         Message message = update.message();
         CallbackQuery callbackQuery = update.callbackQuery();
+        User from = callbackQuery != null ? callbackQuery.from() : message != null ? message.from() : null;
+        if (from == null) {
+            return;
+        }
 
+        long start = System.nanoTime();
+        try {
+            Db.begin(from.id());
+        } catch (Exception e) {
+            logger.error(TAG_CLASS, "Failed to load client data", e);
+            return;
+        } finally {
+            Tracer.record("db.begin", start);
+        }
         try {
             Client client = null;
+            Expect next = null;
             if (callbackQuery != null) {
                 List<String> query = Arrays.asList(callbackQuery.data().split(" "));
                 MappingValue mappingValue = cbWorkers.get(new MappingKey(query.get(0)));
@@ -107,9 +155,10 @@ public class EtherListener implements UpdatesListener {
                     User user = callbackQuery.from();
                     client = nvl(Db.readClient(user.id()), Client.from(user));
                     client.setChatId(callbackQuery.message().chat().id());
-                    Db.delClientExpect(client);
-                    mappingValue.method.invoke(this, client, callbackQuery, query);
+                    mappingValue.invoke(this, client, callbackQuery, query);
+                    next = mappingValue.next;
                 } else {
+                    unknownCallbacks.inc();
                     logger.info(TAG_CLASS, "Unknown callback: " + query);
                 }
             } else if (message != null) {
@@ -117,44 +166,77 @@ public class EtherListener implements UpdatesListener {
                 client = nvl(Db.readClient(user.id()), Client.from(user));
                 client.setChatId(message.chat().id());
                 if (message.entities() != null) { // Command
-                    Db.delClientExpect(client);
                     for (MessageEntity messageEntity : message.entities()) {
                         if (messageEntity.type() == MessageEntity.Type.bot_command) {
                             String cmd = message.text().substring(messageEntity.offset() + 1, messageEntity.length());
                             MappingValue mappingValue = cmdWorkers.get(new MappingKey(cmd));
                             if (mappingValue != null) {
-                                mappingValue.method.invoke(this, client, message);
+                                mappingValue.invoke(this, client, message);
+                                next = mappingValue.next;
                             } else {
+                                unknownCommands.inc();
                                 logger.info(TAG_CLASS, "Unknown value: " + cmd);
                             }
                         }
                     }
                 } else { // Reply
-                    Expect expect = Db.getClientExpect(client);
-                    Db.delClientExpect(client);
+                    Expect expect = client.getExpect();
                     if (expect != null) {
                         MappingValue mappingValue = replyWorkers.get(new MappingKey(expect));
                         if (mappingValue != null) {
-                            mappingValue.method.invoke(this, client, message);
+                            mappingValue.invoke(this, client, message);
+                            next = mappingValue.next;
                         }
                     } else {
+                        unknownReplies.inc();
                         logger.info(TAG_CLASS, "Unexpected reply: " + message.text());
                     }
                 }
             }
-            if (client != null && client.isModified()) {
-                Db.writeClient(client);
+            if (client != null) {
+                client.setExpect(next);
+                if (client.isModified()) {
+                    Db.writeClient(client);
+                }
             }
         } catch (InvocationTargetException e) {
             logger.error(TAG_CLASS, "Internal exception", e);
+            abandon(from.id());
         } catch (Exception e) {
             logger.error(TAG_CLASS, "Reflexive call failed", e);
+            abandon(from.id());
+        } finally {
+            start = System.nanoTime();
+            try {
+                Db.commit();
+            } catch (Exception e) {
+                logger.error(TAG_CLASS, "Failed to store update results", e);
+            } finally {
+                Tracer.record("db.commit", start);
+            }
+        }
+    }
+
+    /**
+     * Discards what the failed update queued and clears the conversation state, so the chat is not stuck with
+     * a reply handler that keeps failing.
+     */
+    private void abandon(int clientId) {
+        Db.rollback();
+        try {
+            Client client = Db.readClient(clientId);
+            if (client != null && client.getExpect() != null) {
+                client.setExpect(null);
+                Db.writeClient(client);
+            }
+        } catch (Exception e) {
+            logger.error(TAG_CLASS, "Failed to reset conversation state", e);
         }
     }
 
     private void sendPayClaim(PaymentClaim paymentClaim) {
         String msgBody = String.format(
-                res.str(cfg.getDefaultLang(), "payment_detail_4oper_message"),
+                res.str(Config.get().getDefaultLang(), "payment_detail_4oper_message"),
                 paymentClaim.getPaySystem(),
                 paymentClaim.getAmount(),
                 paymentClaim.getWalletId(),
@@ -165,26 +247,26 @@ public class EtherListener implements UpdatesListener {
                     .parseMode(ParseMode.HTML)
                     .disableWebPagePreview(false)
                     .disableNotification(false);
-            bot.execute(request);
+            sender.send(chatId, request);
         }
     }
 
     @SuppressWarnings("unused")
     @Command("operator")
+    @Awaits(Expect.OPERATOR_PASSWORD)
     private void operator(Client client, Message message) {
         String msgBody = res.str(client.getLangCode(), "operator_message");
         SendMessage request = new SendMessage(message.from().id(), msgBody)
                 .parseMode(ParseMode.HTML)
                 .disableWebPagePreview(false)
                 .disableNotification(true);
-        bot.execute(request);
-        Db.setClientExpect(client, Expect.OPERATOR_PASSWORD);
+        sender.send(message.chat().id(), request);
     }
 
     @SuppressWarnings("unused")
     @Reply(Expect.OPERATOR_PASSWORD)
     private void operatorReply(Client client, Message message) {
-        if (Objects.equals(cfg.getOperatorPassword(), Misc.nvl(message.text(), ""))) {
+        if (Objects.equals(Config.get().getOperatorPassword(), Misc.nvl(message.text(), ""))) {
             Db.addOperator(message.chat().id());
             operators = Db.getOperators();
             String msgBody = res.str(client.getLangCode(), "operator_mode_enabled");
@@ -192,7 +274,7 @@ public class EtherListener implements UpdatesListener {
                     .parseMode(ParseMode.HTML)
                     .disableWebPagePreview(false)
                     .disableNotification(true);
-            bot.execute(request);
+            sender.send(message.chat().id(), request);
         }
     }
 
@@ -205,8 +287,8 @@ public class EtherListener implements UpdatesListener {
                 .parseMode(ParseMode.HTML)
                 .disableWebPagePreview(false)
                 .disableNotification(true)
-                .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), kbResource)));
-        bot.execute(request);
+                .replyMarkup(res.markup(client.getLangCode(), kbResource));
+        sender.send(message.chat().id(), request);
     }
 
     @SuppressWarnings("unused")
@@ -218,8 +300,8 @@ public class EtherListener implements UpdatesListener {
             EditMessageText editMessageText =
                     new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                             .parseMode(ParseMode.HTML)
-                            .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), kbResource)));
-            bot.execute(editMessageText);
+                            .replyMarkup(res.markup(client.getLangCode(), kbResource));
+            sender.send(query.message().chat().id(), editMessageText);
         }
     }
 
@@ -231,8 +313,8 @@ public class EtherListener implements UpdatesListener {
                 .parseMode(ParseMode.HTML)
                 .disableWebPagePreview(false)
                 .disableNotification(true)
-                .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "lang")));
-        bot.execute(request);
+                .replyMarkup(res.markup(client.getLangCode(), "lang"));
+        sender.send(message.chat().id(), request);
     }
 
     @SuppressWarnings("unused")
@@ -245,8 +327,8 @@ public class EtherListener implements UpdatesListener {
                     .parseMode(ParseMode.HTML)
                     .disableWebPagePreview(false)
                     .disableNotification(true)
-                    .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "pay_systems")));
-            bot.execute(request);
+                    .replyMarkup(res.markup(client.getLangCode(), "pay_systems"));
+            sender.send(message.chat().id(), request);
         }
     }
 
@@ -259,24 +341,23 @@ public class EtherListener implements UpdatesListener {
             EditMessageText editMessageText =
                     new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                             .parseMode(ParseMode.HTML)
-                            .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "pay_systems")));
-            bot.execute(editMessageText);
+                            .replyMarkup(res.markup(client.getLangCode(), "pay_systems"));
+            sender.send(query.message().chat().id(), editMessageText);
         }
     }
 
     @SuppressWarnings("unused")
     @Callback({"on_pay_bitcoin", "on_pay_ethereum", "on_pay_qiwi", "on_pay_sberbank", "on_pay_tinkoff", "on_pay_paypal"})
+    @Awaits(Expect.PAY_AMOUNT)
     private void payXXX(Client client, CallbackQuery query, List<String> args) {
         Db.updateClaim(client, c -> c.setPaySystem(args.get(0).substring(7)));
         final String lng = client.getLangCode();
-        String msgBody = Bot.replaceMarkers(res.str(lng, args.get(0) + "_message")
-                + res.str(lng, "payment_size_request"), lng);
-        logger.debug(TAG_CLASS, "Msg body from resource (with markers replaced): " + msgBody);
+        String msgBody = Bot.render(lng, args.get(0) + "_message", "payment_size_request");
+        logger.debug(TAG_CLASS, "Msg body from resource (with markers replaced): {}", msgBody);
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML);
-        bot.execute(editMessageText);
-        Db.setClientExpect(client, Expect.PAY_AMOUNT);
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
@@ -293,13 +374,13 @@ public class EtherListener implements UpdatesListener {
                         paymentClaim.getAmount(),
                         paymentClaim.getWalletId()
                 );
-                logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+                logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
                 SendMessage request = new SendMessage(message.from().id(), msgBody)
                         .parseMode(ParseMode.HTML)
                         .disableWebPagePreview(false)
                         .disableNotification(true)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "payment_preview")));
-                bot.execute(request);
+                        .replyMarkup(res.markup(client.getLangCode(), "payment_preview"));
+                sender.send(message.chat().id(), request);
             }
         } catch (NumberFormatException e) {
             logger.error(TAG_CLASS, "Invalid amount: " + message.text());
@@ -316,12 +397,12 @@ public class EtherListener implements UpdatesListener {
                 paymentClaim.getAmount(),
                 paymentClaim.getWalletId()
         );
-        logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+        logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "payment")));
-        bot.execute(editMessageText);
+                        .replyMarkup(res.markup(client.getLangCode(), "payment"));
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
@@ -329,12 +410,12 @@ public class EtherListener implements UpdatesListener {
     private void paymentPaid(Client client, CallbackQuery query, List<String> args) {
         Db.updateClaim(client, c -> { c.setChatId(client.getChatId()); c.setUserName(client.getUserName());});
         String msgBody = res.str(client.getLangCode(), "payment_confirm_thanks");
-        logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+        logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "ok")));
-        bot.execute(editMessageText);
+                        .replyMarkup(res.markup(client.getLangCode(), "ok"));
+        sender.send(query.message().chat().id(), editMessageText);
         sendPayClaim(Db.getClaim(client));
     }
 
@@ -343,13 +424,13 @@ public class EtherListener implements UpdatesListener {
     private void settings(Client client, Message message) {
         String msgBody = String.format(res.str(client.getLangCode(), "settings_message"),
                 nvl(client.getWalletId(), res.str(client.getLangCode(), "no_wallet")));
-        logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+        logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
         SendMessage request = new SendMessage(message.from().id(), msgBody)
                 .parseMode(ParseMode.HTML)
                 .disableWebPagePreview(false)
                 .disableNotification(true)
-                .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "settings")));
-        bot.execute(request);
+                .replyMarkup(res.markup(client.getLangCode(), "settings"));
+        sender.send(message.chat().id(), request);
     }
 
     @SuppressWarnings("unused")
@@ -357,12 +438,12 @@ public class EtherListener implements UpdatesListener {
     private void settings(Client client, CallbackQuery query, List<String> args) {
         String msgBody = String.format(res.str(client.getLangCode(), "settings_message"),
                 nvl(client.getWalletId(), res.str(client.getLangCode(), "no_wallet")));
-        logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+        logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "settings")));
-        bot.execute(editMessageText);
+                        .replyMarkup(res.markup(client.getLangCode(), "settings"));
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
@@ -370,23 +451,23 @@ public class EtherListener implements UpdatesListener {
     private void settingsWallet(Client client, CallbackQuery query, List<String> args) {
         String msgBody = String.format(res.str(client.getLangCode(), "wallet_message"),
                 nvl(client.getWalletId(), res.str(client.getLangCode(), "no_wallet")));
-        logger.debug(TAG_CLASS, "Msg body from resource: " + msgBody);
+        logger.debug(TAG_CLASS, "Msg body from resource: {}", msgBody);
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "wallet")));
-        bot.execute(editMessageText);
+                        .replyMarkup(res.markup(client.getLangCode(), "wallet"));
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
     @Callback("on_wallet_edit")
+    @Awaits(Expect.NEW_WALLET_ID)
     private void walletChange(Client client, CallbackQuery query, List<String> args) {
         String msgBody = res.str(client.getLangCode(), "wallet_edit_message");
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML);
-        bot.execute(editMessageText);
-        Db.setClientExpect(client, Expect.NEW_WALLET_ID);
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
@@ -408,8 +489,8 @@ public class EtherListener implements UpdatesListener {
         EditMessageText editMessageText =
                 new EditMessageText(query.message().chat().id(), query.message().messageId(), msgBody)
                         .parseMode(ParseMode.HTML)
-                        .replyMarkup(Bot.getInlineKeyboardMarkup(res.kb(client.getLangCode(), "lang")));
-        bot.execute(editMessageText);
+                        .replyMarkup(res.markup(client.getLangCode(), "lang"));
+        sender.send(query.message().chat().id(), editMessageText);
     }
 
     @SuppressWarnings("unused")
@@ -420,7 +501,7 @@ public class EtherListener implements UpdatesListener {
                 .parseMode(ParseMode.HTML)
                 .disableWebPagePreview(false)
                 .disableNotification(true);
-        bot.execute(request);
+        sender.send(message.chat().id(), request);
     }
 
     private static class MappingKey {
@@ -453,60 +534,115 @@ public class EtherListener implements UpdatesListener {
 
     private static class MappingValue {
         private Method method;
+        private final Expect next;
+        private final Histogram latency;
+        private final Counter errors;
+        private final String span;
 
-        MappingValue(Method method) {
+        MappingValue(Method method, String type, String name) {
             this.method = method;
+            this.next = method.isAnnotationPresent(Awaits.class) ? method.getAnnotation(Awaits.class).value() : null;
+            this.latency = Metrics.get().histogram("bot_update_duration", "type", type, "name", name);
+            this.errors = Metrics.get().counter("bot_update_errors", "type", type, "name", name);
+            this.span = type + " " + name;
+        }
+
+        void invoke(EtherListener listener, Object... args) throws ReflectiveOperationException {
+            long start = System.nanoTime();
+            boolean completed = false;
+            try {
+                method.invoke(listener, args);
+                completed = true;
+            } finally {
+                if (!completed) {
+                    errors.inc();
+                }
+                latency.recordSince(start);
+                Tracer.record(span, start);
+            }
         }
     }
 
+    /**
+     * States of the conversation with a client, kept in the client record: the reply the bot awaits, {@code null}
+     * when idle. Transitions are declared on the handlers with {@link Awaits}; any handled update moves the chat to
+     * the state its handler declares, or to idle.
+     */
     public enum Expect {
         NEW_WALLET_ID,
         PAY_AMOUNT,
-        OPERATOR_PASSWORD
+        OPERATOR_PASSWORD;
+
+        /**
+         * @return the state of the name, {@code null} for {@code null} or a state that no longer exists
+         */
+        public static Expect of(String name) {
+            if (name == null) {
+                return null;
+            }
+            try {
+                return valueOf(name);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
     }
 
-    private class UpdateDispatcher {
-        private HandlersMap handlers = new HandlersMap();
-        private Map<Long,Long> timeKeeper = new HashMap<>();
+    void shutdown() {
+        if (updateDispatcher != null) {
+            updateDispatcher.shutdown();
+        }
+        sender.shutdown();
+    }
+
+    Stats.SenderStats getSenderStats() {
+        return sender.getStats();
+    }
 
-        private static final long TTL = 10_800_000L;
+    /**
+     * Handles updates of different chats in parallel on a fixed worker pool, keeping the updates of one chat in order.
+     */
+    private class UpdateDispatcher {
+        private final ExecutorService workers;
+        private final SerialDispatcher<Long> dispatcher;
 
         private final Marker TAG_CLASS = MarkerManager.getMarker(UpdateDispatcher.class.getSimpleName());
 
-        void submit(Update update) {
-            Long chatId = (update.callbackQuery() != null ? update.callbackQuery().message() : update.message()).chat().id();
-            handlers.putIfAbsent(chatId, Executors.newSingleThreadScheduledExecutor(new DispatcherThreadFactory(chatId)));
-            handlers.get(chatId).submit(() -> EtherListener.this.processUpdate(update));
-            timeKeeper.put(chatId, System.currentTimeMillis());
+        UpdateDispatcher() {
+            Config cfg = Config.get();
+            workers = Workers.newPool(cfg.getExecutionMode(), cfg.getChatWorkerThreads(), "chat_handler[%d]");
+            dispatcher = new SerialDispatcher<>(workers,
+                    cfg.getChatMailboxCapacity(), cfg.getChatMaxPending(), cfg.getChatSubmitTimeout());
+            Config.addReloadListener(this::reconfig);
+            Metrics.get().gauge("bot_dispatch_pending", dispatcher::getPending);
+            Metrics.get().gauge("bot_dispatch_mailboxes", dispatcher::getMailboxCount);
+            Metrics.get().counter("bot_dispatch_rejected", dispatcher::getRejected);
         }
 
-        private class DispatcherThreadFactory implements ThreadFactory {
-            private Long chatId;
-
-            DispatcherThreadFactory(Long chatId) {
-                this.chatId = chatId;
-            }
-
-            @Override
-            public Thread newThread(Runnable r) {
-                return new Thread(r, String.format("chat_handler[%d]", chatId));
+        boolean submit(Update update) {
+            Long chatId = (update.callbackQuery() != null ? update.callbackQuery().message() : update.message()).chat().id();
+            try {
+                if (!dispatcher.submit(chatId, () -> EtherListener.this.processUpdate(update))) {
+                    logger.warn(TAG_CLASS, "Mailbox of chat " + chatId + " is full, update " + update.updateId() + " rejected");
+                    return false;
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn(TAG_CLASS, "Interrupted, update " + update.updateId() + " of chat " + chatId + " rejected");
+                return false;
             }
         }
 
-        private class HandlersMap extends LinkedHashMap<Long,ExecutorService> {
-            HandlersMap() {
-                super(16, 0.75f, true);
+        private void reconfig() {
+            int threads = Config.get().getChatWorkerThreads();
+            if (Workers.resize(workers, threads)) {
+                logger.info(TAG_CLASS, "Chat worker pool resized to " + threads);
             }
+        }
 
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Long, ExecutorService> eldest) {
-                if (System.currentTimeMillis() - timeKeeper.get(eldest.getKey()) > TTL) {
-                    logger.info(TAG_CLASS, "Remove stale executor of chat " + eldest.getKey());
-                    eldest.getValue().shutdown();
-                    return true;
-                }
-                return false;
-            }
+        void shutdown() {
+            dispatcher.shutdown();
         }
     }
 }
@@ -0,0 +1,360 @@
+package net.wizards.etherest.bot;
+
+import com.pengrad.telegrambot.Callback;
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.response.BaseResponse;
+import net.wizards.etherest.Config;
+import net.wizards.etherest.database.Stats;
+import net.wizards.etherest.metrics.Metrics;
+import net.wizards.etherest.trace.Trace;
+import net.wizards.etherest.trace.Tracer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound Bot API queue. Handlers enqueue requests and return; a scheduler thread sends them asynchronously,
+ * keeping the global and per-chat send rates within the Bot API limits. Requests to one chat are sent one at a time
+ * in enqueue order, requests to different chats are in flight concurrently over the shared HTTP client.
+ * Requests failed with 429, 5xx or an I/O error are retried with backoff, honouring {@code retry_after}.
+ * <p>
+ * A chat's queue is dropped as soon as it drains, its rate limiter only once the bucket has refilled, so a chat
+ * can't reset its send rate by letting its queue run empty.
+ */
+class Sender {
+    private final TelegramBot bot;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Long, ChatQueue> chats = new HashMap<>();
+    private final Map<Long, RateLimiter> chatLimiters = new HashMap<>();
+    private final ArrayDeque<ChatQueue> ready = new ArrayDeque<>();
+    private RateLimiter globalLimiter;
+    private int globalRate;
+    private final Stats.SenderStats stats = new Stats.SenderStats();
+    private final Thread scheduler;
+    private long limitersExpired = System.nanoTime();
+    private volatile int queued;
+    private volatile int inFlight;
+    private volatile boolean running = true;
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(Sender.class.getSimpleName());
+
+    private static final long MAX_BACKOFF = TimeUnit.SECONDS.toNanos(60);
+    private static final long LIMITER_EXPIRY_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    Sender(TelegramBot bot) {
+        this.bot = bot;
+        this.globalRate = Config.get().getBotGlobalRate();
+        this.globalLimiter = new RateLimiter(globalRate, globalRate);
+        Config.addReloadListener(this::reconfig);
+        Metrics.get().gauge("telegram_send_queued", () -> queued);
+        Metrics.get().gauge("telegram_send_in_flight", () -> inFlight);
+        this.scheduler = new Thread(this::schedule, "tg_sender");
+        this.scheduler.setDaemon(true);
+        this.scheduler.start();
+    }
+
+    /**
+     * Queues the request for the chat. Returns {@code false} if the queue is full and the request was dropped.
+     */
+    <T extends BaseRequest<T, R>, R extends BaseResponse> boolean send(long chatId, T request) {
+        lock.lock();
+        try {
+            if (!running || queued >= Config.get().getBotSendQueueCapacity()) {
+                stats.onDropped();
+                logger.warn(TAG_CLASS, "Send queue is full, " + request.getClass().getSimpleName()
+                        + " to chat " + chatId + " dropped");
+                return false;
+            }
+            ChatQueue chat = chats.computeIfAbsent(chatId, ChatQueue::new);
+            chat.messages.add(new Outgoing<>(request));
+            queued++;
+            stats.onQueued();
+            if (!chat.inFlight && !chat.ready) {
+                chat.ready = true;
+                ready.add(chat);
+                changed.signal();
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        scheduler.interrupt();
+        lock.lock();
+        try {
+            if (queued > 0) {
+                logger.warn(TAG_CLASS, "Sender stopped, " + queued + " queued request(s) dropped");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void reconfig() {
+        int rate = Config.get().getBotGlobalRate();
+        lock.lock();
+        try {
+            if (rate != globalRate) {
+                globalRate = rate;
+                globalLimiter = new RateLimiter(rate, rate);
+                changed.signalAll();
+                logger.info(TAG_CLASS, "Global send rate set to " + globalRate + "/s");
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    Stats.SenderStats getStats() {
+        lock.lock();
+        try {
+            stats.setQueued(queued, inFlight);
+            return stats;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void schedule() {
+        lock.lock();
+        try {
+            while (running) {
+                expireLimiters();
+                long wait = dispatchReady();
+                if (wait == 0) {
+                    continue;
+                }
+                if (wait < 0) {
+                    changed.await();
+                } else {
+                    changed.awaitNanos(wait);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops, at most once per interval, the limiters of chats with nothing queued whose bucket is full again;
+     * a new limiter for such a chat starts in the same state.
+     */
+    private void expireLimiters() {
+        long now = System.nanoTime();
+        if (now - limitersExpired < LIMITER_EXPIRY_INTERVAL) {
+            return;
+        }
+        limitersExpired = now;
+        chatLimiters.entrySet().removeIf(e -> !chats.containsKey(e.getKey()) && e.getValue().isFull(now));
+    }
+
+    /**
+     * Sends the head request of the first due chat. Returns 0 after a request was sent, otherwise the time until
+     * the next chat becomes due or -1 if there is nothing to wait for.
+     */
+    private long dispatchReady() {
+        long now = System.nanoTime();
+        long wait = -1;
+        if (inFlight >= Config.get().getBotMaxInFlight()) {
+            return wait;
+        }
+        Iterator<ChatQueue> it = ready.iterator();
+        while (it.hasNext()) {
+            ChatQueue chat = it.next();
+            long due = Math.max(chat.notBefore - now, chat.limiter.delay(now));
+            if (due <= 0) {
+                due = globalLimiter.delay(now);
+                if (due <= 0) {
+                    it.remove();
+                    chat.ready = false;
+                    chat.limiter.take(now);
+                    globalLimiter.take(now);
+                    dispatch(chat);
+                    return 0;
+                }
+            }
+            wait = wait < 0 ? due : Math.min(wait, due);
+        }
+        return wait;
+    }
+
+    private void dispatch(ChatQueue chat) {
+        chat.inFlight = true;
+        inFlight++;
+        Outgoing<?, ?> message = chat.messages.peek();
+        try {
+            message.execute(chat);
+        } catch (RuntimeException e) {
+            onComplete(chat, message, null, new IOException(e));
+        }
+    }
+
+    private void onComplete(ChatQueue chat, Outgoing<?, ?> message, BaseResponse response, IOException error) {
+        lock.lock();
+        try {
+            chat.inFlight = false;
+            inFlight--;
+            message.onCompleted(response, error);
+            long retryDelay = -1;
+            if (error != null) {
+                retryDelay = backoff(message.attempts);
+            } else if (!response.isOk()) {
+                if (response.errorCode() == 429) {
+                    Integer retryAfter = response.parameters() != null ? response.parameters().retryAfter() : null;
+                    retryDelay = retryAfter != null ? TimeUnit.SECONDS.toNanos(retryAfter) : backoff(message.attempts);
+                } else if (response.errorCode() >= 500) {
+                    retryDelay = backoff(message.attempts);
+                }
+            }
+            if (retryDelay >= 0 && message.attempts < Config.get().getBotSendRetries()) {
+                message.attempts++;
+                chat.notBefore = System.nanoTime() + retryDelay;
+                stats.onRetried();
+                logger.debug(TAG_CLASS, "{} to chat {} failed ({}), retry {} in {} ms",
+                        message.request.getClass().getSimpleName(), chat.chatId, failure(response, error),
+                        message.attempts, TimeUnit.NANOSECONDS.toMillis(retryDelay));
+            } else {
+                chat.messages.poll();
+                queued--;
+                if (error == null && response.isOk()) {
+                    stats.onSent();
+                } else {
+                    stats.onFailed();
+                    logger.error(TAG_CLASS, "{} to chat {} failed: {}",
+                            message.request.getClass().getSimpleName(), chat.chatId, failure(response, error));
+                }
+            }
+            if (chat.messages.isEmpty()) {
+                chats.remove(chat.chatId);
+            } else {
+                chat.ready = true;
+                ready.add(chat);
+            }
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static String failure(BaseResponse response, IOException error) {
+        return error != null ? error.getMessage() : response.errorCode() + " " + response.description();
+    }
+
+    private long backoff(int attempts) {
+        long delay = TimeUnit.MILLISECONDS.toNanos(Config.get().getBotRetryBackoff()) << Math.min(attempts, 16);
+        return Math.min(delay, MAX_BACKOFF);
+    }
+
+    private class ChatQueue {
+        private final long chatId;
+        private final ArrayDeque<Outgoing<?, ?>> messages = new ArrayDeque<>();
+        private final RateLimiter limiter;
+        private long notBefore;
+        private boolean inFlight;
+        private boolean ready;
+
+        ChatQueue(long chatId) {
+            this.chatId = chatId;
+            this.limiter = chatLimiters.computeIfAbsent(chatId,
+                    id -> new RateLimiter(Config.get().getBotChatRate(), Config.get().getBotChatBurst()));
+        }
+    }
+
+    private class Outgoing<T extends BaseRequest<T, R>, R extends BaseResponse> {
+        private final T request;
+        private final Trace trace = Tracer.current();
+        private int attempts;
+        private long started;
+
+        Outgoing(T request) {
+            this.request = request;
+        }
+
+        void execute(ChatQueue chat) {
+            started = System.nanoTime();
+            bot.execute(request, new Callback<T, R>() {
+                @Override
+                public void onResponse(T request, R response) {
+                    onComplete(chat, Outgoing.this, response, null);
+                }
+
+                @Override
+                public void onFailure(T request, IOException e) {
+                    onComplete(chat, Outgoing.this, null, e);
+                }
+            });
+        }
+
+        /**
+         * Records the latency and the outcome of the attempt, per Bot API method, and adds the attempt to the trace
+         * of the update that enqueued the request.
+         */
+        void onCompleted(BaseResponse response, IOException error) {
+            String method = request.getMethod();
+            Metrics.get().histogram("telegram_request_duration", "method", method).recordSince(started);
+            if (trace != null) {
+                trace.record("telegram." + method, started);
+            }
+            if (error != null) {
+                Metrics.get().counter("telegram_request_errors", "method", method, "code", "io").inc();
+            } else if (!response.isOk()) {
+                Metrics.get().counter("telegram_request_errors", "method", method,
+                        "code", String.valueOf(response.errorCode())).inc();
+            }
+        }
+    }
+
+    /**
+     * Token bucket: {@code rate} tokens per second, at most {@code burst} stored.
+     */
+    private static class RateLimiter {
+        private final double nanosPerToken;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        RateLimiter(double rate, double burst) {
+            this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rate;
+            this.burst = Math.max(1, burst);
+            this.tokens = this.burst;
+        }
+
+        long delay(long now) {
+            refill(now);
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * nanosPerToken);
+        }
+
+        void take(long now) {
+            refill(now);
+            tokens -= 1;
+        }
+
+        boolean isFull(long now) {
+            refill(now);
+            return tokens >= burst;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(burst, tokens + (now - last) / nanosPerToken);
+            last = now;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package net.wizards.etherest.bot.annotation;
+
+import net.wizards.etherest.bot.EtherListener;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Transition of the chat after the handler completes: the reply awaited next. Without it the chat goes idle.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Awaits {
+    EtherListener.Expect value();
+}
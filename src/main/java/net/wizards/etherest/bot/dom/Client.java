@@ -2,19 +2,25 @@ package net.wizards.etherest.bot.dom;
 
 import com.pengrad.telegrambot.model.User;
 import net.wizards.etherest.Config;
+import net.wizards.etherest.bot.EtherListener;
 import net.wizards.etherest.util.Misc;
 
 import java.util.Objects;
 
 public class Client {
+    public static final int LANG_CODE = 1;
+    public static final int WALLET_ID = 2;
+    public static final int EXPECT = 4;
+
     private int id;
     private String firstName;
     private String lastName;
     private String userName;
     private String langCode;
     private String walletId;
+    private EtherListener.Expect expect;
 
-    transient private boolean modified;
+    transient private int modifiedFields;
     transient private Long chatId;
 
     public Client() {
@@ -30,13 +36,22 @@ public class Client {
                 .build();
     }
 
-    private Client(int id, String firstName, String lastName, String userName, String langCode, String walletId) {
+    private Client(int id, String firstName, String lastName, String userName, String langCode, String walletId,
+                   EtherListener.Expect expect) {
         this.id = id;
         this.firstName = firstName;
         this.lastName = lastName;
         this.userName = userName;
         this.langCode = langCode;
         this.walletId = walletId;
+        this.expect = expect;
+    }
+
+    /**
+     * Returns an unmodified detached copy of the persistent fields.
+     */
+    public Client copy() {
+        return new Client(id, firstName, lastName, userName, langCode, walletId, expect);
     }
 
     public Long getChatId() {
@@ -63,7 +78,14 @@ public class Client {
     }
 
     public boolean isModified() {
-        return modified;
+        return modifiedFields != 0;
+    }
+
+    /**
+     * @param field {@link #LANG_CODE}, {@link #WALLET_ID} or {@link #EXPECT}
+     */
+    public boolean isModified(int field) {
+        return (modifiedFields & field) != 0;
     }
 
     @Override
@@ -75,20 +97,31 @@ public class Client {
                 ", userName='" + userName + '\'' +
                 ", langCode='" + langCode + '\'' +
                 ", walletId='" + walletId + '\'' +
+                ", expect=" + expect +
                 '}';
     }
 
     public void setLangCode(String langCode) {
         if (!Objects.equals(this.langCode, langCode)) {
             this.langCode = langCode;
-            modified = true;
+            modifiedFields |= LANG_CODE;
         }
     }
 
     public void setWalletId(String walletId) {
         if (!Objects.equals(this.walletId, walletId)) {
             this.walletId = walletId;
-            modified = true;
+            modifiedFields |= WALLET_ID;
+        }
+    }
+
+    /**
+     * Moves the conversation to the given state, {@code null} when no reply is awaited.
+     */
+    public void setExpect(EtherListener.Expect expect) {
+        if (this.expect != expect) {
+            this.expect = expect;
+            modifiedFields |= EXPECT;
         }
     }
 
@@ -116,6 +149,10 @@ public class Client {
         return walletId;
     }
 
+    public EtherListener.Expect getExpect() {
+        return expect;
+    }
+
     public static class Builder {
         private int id;
         private String firstName;
@@ -123,6 +160,7 @@ public class Client {
         private String userName;
         private String langCode;
         private String walletId;
+        private EtherListener.Expect expect;
 
         public Builder setId(int id) {
             this.id = id;
@@ -154,8 +192,13 @@ public class Client {
             return this;
         }
 
+        public Builder setExpect(EtherListener.Expect expect) {
+            this.expect = expect;
+            return this;
+        }
+
         public Client build() {
-            return new Client(id, firstName, lastName, userName, langCode, walletId);
+            return new Client(id, firstName, lastName, userName, langCode, walletId, expect);
         }
     }
 }
@@ -43,6 +43,10 @@ public class PaymentClaim {
         return amount;
     }
 
+    public Long getChatId() {
+        return chatId;
+    }
+
     @Override
     public String toString() {
         return "PaymentClaim{" +
@@ -1,7 +1,10 @@
 package net.wizards.etherest.bot.dom;
 
 import com.google.gson.Gson;
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 import net.wizards.etherest.Config;
+import net.wizards.etherest.bot.util.Template;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
@@ -12,23 +15,84 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.function.Function;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+/**
+ * Localized messages and keyboards. Everything derived from the resource files (compiled templates, keyboard
+ * markup) is built once per load into an immutable snapshot; {@link #reload()} swaps in a new snapshot atomically,
+ * so a lookup never sees a half-built state.
+ */
 public class Resources {
-    private Resource defaultRes;
-    private Map<String, Resource> resources = new HashMap<>();
+    private volatile Snapshot snapshot;
 
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Resources.class.getSimpleName());
 
+    private static final InlineKeyboardMarkup EMPTY_MARKUP = new InlineKeyboardMarkup(new InlineKeyboardButton[0][]);
+
     private static Resources instance;
 
     private Resources(String defaultLang) {
+        snapshot = load(defaultLang);
+    }
+
+    public static synchronized Resources get() {
+        if (instance == null) {
+            instance = new Resources(Config.get().getDefaultLang());
+            Config.addReloadListener(instance::reload);
+        }
+        return instance;
+    }
+
+    public void reload() {
+        snapshot = load(Config.get().getDefaultLang());
+        logger.info(TAG_CLASS, "Resources reloaded");
+    }
+
+    public String str(String lng, String key) {
+        return snapshot.str(lng, key);
+    }
+
+    /**
+     * Returns the message compiled at load time, markers bound.
+     */
+    public Template tpl(String lng, String key) {
+        return snapshot.lookup(lng, key, r -> r.templates, Template.EMPTY);
+    }
+
+    public List<Map<String, String>> kb(String lng, String key) {
+        return snapshot.lookup(lng, key, r -> r.kb, Collections.emptyList());
+    }
+
+    /**
+     * Returns the keyboard built at load time. The markup is shared, don't modify it.
+     */
+    public InlineKeyboardMarkup markup(String lng, String key) {
+        return snapshot.lookup(lng, key, r -> r.markups, EMPTY_MARKUP);
+    }
+
+    public static InlineKeyboardMarkup buildMarkup(List<Map<String, String>> markup) {
+        InlineKeyboardButton[][] keyboardButtons = new InlineKeyboardButton[markup.size()][];
+        for (int i = 0; i < keyboardButtons.length; i++) {
+            Map<String, String> row = markup.get(i);
+            InlineKeyboardButton[] buttons = new InlineKeyboardButton[row.size()];
+            int j = 0;
+            for (Map.Entry<String, String> e : row.entrySet()) {
+                buttons[j++] = new InlineKeyboardButton(e.getValue()).callbackData(e.getKey());
+            }
+            keyboardButtons[i] = buttons;
+        }
+        return new InlineKeyboardMarkup(keyboardButtons);
+    }
+
+    private Snapshot load(String defaultLang) {
         final File jarFile = new File(getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
         final Pattern resourceFileFilter = Pattern.compile("^resource_([a-z]{2})\\.json$");
+        Map<String, Resource> resources = new HashMap<>();
 
         if(jarFile.isFile()) {
             try (final JarFile jar = new JarFile(jarFile)) {
@@ -42,9 +106,6 @@ public class Resources {
                                 new InputStreamReader(getClass().getResourceAsStream("/" + name),
                                         StandardCharsets.UTF_8), Resource.class);
                         resources.put(lng, resource);
-                        if (lng.equals(defaultLang)) {
-                            defaultRes = resource;
-                        }
                         logger.info(TAG_CLASS, "File " + name + " loaded as resource \"" + matcher.group(1) + "\"");
                     }
                 }
@@ -53,33 +114,56 @@ public class Resources {
                 throw new IllegalStateException("Can't initialize resource data");
             }
         }
+        Snapshot loaded = new Snapshot(resources, resources.get(defaultLang));
+        resources.forEach((lng, resource) -> resource.compile(key -> loaded.str(lng, key)));
+        return loaded;
     }
 
-    public static synchronized Resources get() {
-        if (instance == null) {
-            instance = new Resources(Config.get().getDefaultLang());
+    private static class Snapshot {
+        private final Map<String, Resource> resources;
+        private final Resource defaultRes;
+
+        Snapshot(Map<String, Resource> resources, Resource defaultRes) {
+            this.resources = resources;
+            this.defaultRes = defaultRes;
         }
-        return instance;
-    }
 
-    public String str(String lng, String key) {
-        Resource res = resources.getOrDefault(lng, defaultRes);
-        if (res != null) {
-            return res.msg.getOrDefault(key, defaultRes != null ? defaultRes.msg.get(key) : "");
+        String str(String lng, String key) {
+            Resource res = resources.getOrDefault(lng, defaultRes);
+            if (res != null) {
+                return res.msg.getOrDefault(key, defaultRes != null ? defaultRes.msg.get(key) : "");
+            }
+            return "";
         }
-        return "";
-    }
 
-    public List<Map<String, String>> kb(String lng, String key) {
-        Resource res = resources.getOrDefault(lng, defaultRes);
-        if (res != null) {
-            return res.kb.getOrDefault(key, defaultRes != null ? defaultRes.kb.get(key) : new ArrayList<>());
+        <T> T lookup(String lng, String key, Function<Resource, Map<String, T>> table, T ifMissing) {
+            Resource res = resources.getOrDefault(lng, defaultRes);
+            if (res != null) {
+                T value = table.apply(res).get(key);
+                if (value == null && defaultRes != null) {
+                    value = table.apply(defaultRes).get(key);
+                }
+                if (value != null) {
+                    return value;
+                }
+            }
+            return ifMissing;
         }
-        return new ArrayList<>();
     }
 
     private static class Resource {
         private Map<String, String> msg;
         private Map<String, List<Map<String, String>>> kb;
+        private transient Map<String, Template> templates;
+        private transient Map<String, InlineKeyboardMarkup> markups;
+
+        private void compile(Function<String, String> resolver) {
+            Map<String, Template> compiledTemplates = new HashMap<>();
+            msg.forEach((key, value) -> compiledTemplates.put(key, Template.compile(value, resolver)));
+            templates = compiledTemplates;
+            Map<String, InlineKeyboardMarkup> builtMarkups = new HashMap<>();
+            kb.forEach((key, rows) -> builtMarkups.put(key, buildMarkup(rows)));
+            markups = builtMarkups;
+        }
     }
 }
@@ -0,0 +1,281 @@
+package net.wizards.etherest.bot.rate;
+
+import net.wizards.etherest.Config;
+import net.wizards.etherest.database.Redis;
+import net.wizards.etherest.database.Stats;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.*;
+
+/**
+ * Exchange rates kept in memory and refreshed in the background shortly before they expire, so readers normally
+ * never wait for the upstream. If the upstream fails, the last known rate is served right away, while the refresh
+ * is retried in the background, until it is older than the configured maximum staleness. A reader only blocks when
+ * it has nothing to serve at all; concurrent readers of the same pair then share a single fetch.
+ * <p>
+ * Fetched rates are also written to Redis with the configured TTL, and a restarted instance starts from them.
+ */
+public class ExchangeRates {
+    private final Redis redis;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> fetches = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> refreshes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Stats.RateStats> stats = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService refresher;
+    private volatile RateSource source;
+    private List<Object> sourceSettings;
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(ExchangeRates.class.getSimpleName());
+
+    public static final String SOURCE_HTTP = "http";
+    public static final String SOURCE_LOCAL = "local";
+
+    private static ExchangeRates instance;
+
+    private ExchangeRates() {
+        redis = Redis.getInstance();
+        refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "rate_refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sourceSettings = sourceSettings();
+        source = createSource();
+        for (String pair : configuredPairs()) {
+            seed(pair);
+            refresh(pair);
+        }
+    }
+
+    public static synchronized ExchangeRates get() {
+        if (instance == null) {
+            instance = new ExchangeRates();
+            Config.addReloadListener(instance::reconfig);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the rate of the pair, or {@code null} if there is neither a fresh nor an acceptably stale one.
+     * Blocks for up to the fetch timeout only when there is no cached rate within the maximum staleness.
+     */
+    public String rate(String pair) {
+        Stats.RateStats pairStats = statsOf(pair);
+        Entry entry = entries.get(pair);
+        long now = System.currentTimeMillis();
+        if (entry != null && entry.age(now) < ttlMillis()) {
+            pairStats.onHit();
+            if (entry.age(now) >= ttlMillis() - refreshAheadMillis()) {
+                refreshInBackground(pair);
+            }
+            return entry.rate;
+        }
+        if (entry != null && entry.age(now) < TimeUnit.SECONDS.toMillis(Config.get().getRateMaxStaleness())) {
+            pairStats.onStaleServed();
+            refreshInBackground(pair);
+            return entry.rate;
+        }
+        pairStats.onMiss();
+        try {
+            return refresh(pair).get(Config.get().getRateFetchTimeout(), TimeUnit.MILLISECONDS).rate;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.debug(TAG_CLASS, "No fresh rate for " + pair + ": " + e);
+        }
+        logger.warn(TAG_CLASS, "No rate available for " + pair);
+        return null;
+    }
+
+    /**
+     * Replaces the upstream, e.g. with a {@link LocalRateSource} in tests. Cached rates are kept.
+     */
+    public void setSource(RateSource source) {
+        this.source = source;
+    }
+
+    public Map<String, Stats.RateStats> getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, Stats.RateStats> result = new TreeMap<>();
+        stats.forEach((pair, pairStats) -> {
+            Entry entry = entries.get(pair);
+            pairStats.setRate(entry != null ? entry.rate : null,
+                    entry != null ? TimeUnit.MILLISECONDS.toSeconds(entry.age(now)) : -1);
+            result.put(pair, pairStats);
+        });
+        return result;
+    }
+
+    public void shutdown() {
+        refresher.shutdownNow();
+    }
+
+    /**
+     * Leaves the pair to the fetch in flight or to the scheduled retry, if there is one, so readers of a stale
+     * rate don't hit a failing upstream more often than the retry interval.
+     */
+    private void refreshInBackground(String pair) {
+        ScheduledFuture<?> scheduled = refreshes.get(pair);
+        if (fetches.containsKey(pair) || scheduled != null && !scheduled.isDone()) {
+            return;
+        }
+        refresh(pair);
+    }
+
+    /**
+     * Starts a fetch of the pair unless one is already in flight, and returns the pending result.
+     */
+    private CompletableFuture<Entry> refresh(String pair) {
+        CompletableFuture<Entry> fetch = fetches.get(pair);
+        if (fetch != null) {
+            statsOf(pair).onCoalesced();
+            return fetch;
+        }
+        CompletableFuture<Entry> created = new CompletableFuture<>();
+        fetch = fetches.putIfAbsent(pair, created);
+        if (fetch != null) {
+            statsOf(pair).onCoalesced();
+            return fetch;
+        }
+        try {
+            refresher.execute(() -> fetch(pair, created));
+        } catch (RejectedExecutionException e) {
+            fetches.remove(pair, created);
+            created.completeExceptionally(e);
+        }
+        return created;
+    }
+
+    private void fetch(String pair, CompletableFuture<Entry> result) {
+        Stats.RateStats pairStats = statsOf(pair);
+        long start = System.nanoTime();
+        try {
+            String rate = source.fetch(pair);
+            pairStats.onFetch(System.nanoTime() - start);
+            Entry entry = new Entry(rate, System.currentTimeMillis());
+            entries.put(pair, entry);
+            store(pair, rate);
+            schedule(pair, ttlMillis() - refreshAheadMillis());
+            fetches.remove(pair, result);
+            result.complete(entry);
+        } catch (Exception e) {
+            pairStats.onFailure(System.nanoTime() - start);
+            logger.warn(TAG_CLASS, "Failed to fetch rate " + pair + ": " + e.getMessage());
+            schedule(pair, TimeUnit.SECONDS.toMillis(Config.get().getRateRetryInterval()));
+            fetches.remove(pair, result);
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void schedule(String pair, long delayMillis) {
+        try {
+            ScheduledFuture<?> previous = refreshes.put(pair,
+                    refresher.schedule(() -> refresh(pair), Math.max(0, delayMillis), TimeUnit.MILLISECONDS));
+            if (previous != null) {
+                previous.cancel(false);
+            }
+        } catch (RejectedExecutionException e) {
+            logger.debug(TAG_CLASS, "Refresher stopped, " + pair + " not rescheduled");
+        }
+    }
+
+    /**
+     * Takes the rate left in Redis by a previous run. Its age is unknown, so it is taken as due for refresh.
+     */
+    private void seed(String pair) {
+        try {
+            String rate = redis.get(redisKey(pair));
+            if (rate != null) {
+                entries.putIfAbsent(pair, new Entry(rate,
+                        System.currentTimeMillis() - ttlMillis() + refreshAheadMillis()));
+            }
+        } catch (RuntimeException e) {
+            logger.warn(TAG_CLASS, "Can't read cached rate " + pair + ": " + e.getMessage());
+        }
+    }
+
+    private void store(String pair, String rate) {
+        try {
+            redis.set(redisKey(pair), rate, Config.get().getRateTtl());
+        } catch (RuntimeException e) {
+            logger.warn(TAG_CLASS, "Can't cache rate " + pair + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds a new source only if its settings changed; the replaced one is closed.
+     */
+    private void reconfig() {
+        List<Object> settings = sourceSettings();
+        if (!settings.equals(sourceSettings)) {
+            RateSource previous = source;
+            sourceSettings = settings;
+            source = createSource();
+            previous.close();
+            logger.info(TAG_CLASS, "Rate source replaced");
+        }
+        for (String pair : configuredPairs()) {
+            if (!entries.containsKey(pair)) {
+                refresh(pair);
+            }
+        }
+    }
+
+    private RateSource createSource() {
+        if (SOURCE_LOCAL.equals(Config.get().getRateSource())) {
+            return new LocalRateSource(Config.get().getRateLocal());
+        }
+        return new HttpRateSource(Config.get().getRateSourceUrl(), Config.get().getRateFetchTimeout());
+    }
+
+    private static List<Object> sourceSettings() {
+        Config cfg = Config.get();
+        return Arrays.asList(cfg.getRateSource(), cfg.getRateSourceUrl(), cfg.getRateFetchTimeout(), cfg.getRateLocal());
+    }
+
+    private String[] configuredPairs() {
+        String pairs = Config.get().getRatePairs();
+        return pairs == null || pairs.trim().isEmpty() ? new String[0] : pairs.trim().split("\\s*,\\s*");
+    }
+
+    private Stats.RateStats statsOf(String pair) {
+        return stats.computeIfAbsent(pair, p -> new Stats.RateStats());
+    }
+
+    private long ttlMillis() {
+        return TimeUnit.SECONDS.toMillis(Config.get().getRateTtl());
+    }
+
+    private long refreshAheadMillis() {
+        return TimeUnit.SECONDS.toMillis(Config.get().getRateRefreshAhead());
+    }
+
+    /**
+     * Keeps the key of the single-pair implementation, {@code env:btc2eth} for {@code btc_eth}.
+     */
+    private static String redisKey(String pair) {
+        return "env:" + pair.replace('_', '2');
+    }
+
+    private static class Entry {
+        private final String rate;
+        private final long fetchedAt;
+
+        Entry(String rate, long fetchedAt) {
+            this.rate = rate;
+            this.fetchedAt = fetchedAt;
+        }
+
+        long age(long now) {
+            return now - fetchedAt;
+        }
+    }
+}
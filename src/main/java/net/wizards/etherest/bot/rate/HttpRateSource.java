@@ -0,0 +1,57 @@
+package net.wizards.etherest.bot.rate;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches {@code {"rate": ...}} from the URL made of the configured format and the pair.
+ */
+public class HttpRateSource implements RateSource {
+    private final OkHttpClient client;
+    private final String urlFormat;
+    private final Gson gson = new Gson();
+
+    public HttpRateSource(String urlFormat, long timeoutMillis) {
+        this.urlFormat = urlFormat;
+        this.client = new OkHttpClient.Builder()
+                .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    @Override
+    public String fetch(String pair) throws IOException {
+        Request request = new Request.Builder()
+                .url(String.format(urlFormat, pair))
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Rate request for " + pair + " failed with HTTP " + response.code());
+            }
+            JsonObject result;
+            try {
+                result = gson.fromJson(body.string(), JsonObject.class);
+            } catch (RuntimeException e) {
+                throw new IOException("Malformed rate response for " + pair, e);
+            }
+            if (result == null || !result.has("rate")) {
+                throw new IOException("No rate in response for " + pair);
+            }
+            return result.get("rate").getAsString();
+        }
+    }
+
+    @Override
+    public void close() {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+}
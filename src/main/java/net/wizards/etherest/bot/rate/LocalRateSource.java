@@ -0,0 +1,52 @@
+package net.wizards.etherest.bot.rate;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-process stand-in for the upstream, for tests and offline runs. Serves the rates put into it; a pair without
+ * a rate fails like an unreachable upstream. An optional delay simulates the network round trip.
+ */
+public class LocalRateSource implements RateSource {
+    private final Map<String, String> rates = new ConcurrentHashMap<>();
+    private volatile long delayMillis;
+
+    public LocalRateSource(Map<String, String> rates) {
+        if (rates != null) {
+            this.rates.putAll(rates);
+        }
+    }
+
+    public LocalRateSource put(String pair, String rate) {
+        rates.put(pair, rate);
+        return this;
+    }
+
+    public LocalRateSource remove(String pair) {
+        rates.remove(pair);
+        return this;
+    }
+
+    public LocalRateSource setDelay(long delayMillis) {
+        this.delayMillis = delayMillis;
+        return this;
+    }
+
+    @Override
+    public String fetch(String pair) throws IOException {
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        String rate = rates.get(pair);
+        if (rate == null) {
+            throw new IOException("No local rate for " + pair);
+        }
+        return rate;
+    }
+}
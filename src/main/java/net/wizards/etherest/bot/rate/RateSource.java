@@ -0,0 +1,21 @@
+package net.wizards.etherest.bot.rate;
+
+import java.io.IOException;
+
+/**
+ * Upstream of the exchange rates. Called from the refresh thread only, one pair at a time.
+ */
+public interface RateSource {
+    /**
+     * @param pair currency pair as {@code from_to}, e.g. {@code btc_eth}
+     * @return the rate as text, never {@code null}
+     * @throws IOException if the rate can't be fetched
+     */
+    String fetch(String pair) throws IOException;
+
+    /**
+     * Releases the resources of a source that has been replaced.
+     */
+    default void close() {
+    }
+}
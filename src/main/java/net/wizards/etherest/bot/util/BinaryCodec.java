@@ -0,0 +1,59 @@
+package net.wizards.etherest.bot.util;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import net.wizards.etherest.Config;
+
+import java.util.function.Function;
+
+/**
+ * Codec of a record that also has a compact {@link BinaryRecords binary} form. The binary form is written when
+ * {@code clientRecordFormat} is {@code binary}; either form is read regardless of the setting.
+ */
+public final class BinaryCodec<T> extends Codec<T> {
+    private final Function<T, byte[]> binaryEncoder;
+    private final Function<byte[], T> binaryDecoder;
+
+    BinaryCodec(TypeAdapter<T> adapter, Function<T, byte[]> binaryEncoder, Function<byte[], T> binaryDecoder) {
+        super(adapter);
+        this.binaryEncoder = binaryEncoder;
+        this.binaryDecoder = binaryDecoder;
+    }
+
+    /**
+     * @return the value in the configured format, {@code null} for a {@code null} value
+     */
+    @Override
+    public byte[] encode(T value) {
+        if ("binary".equalsIgnoreCase(Config.get().getClientRecordFormat())) {
+            return encodeBinary(value);
+        }
+        return encodeJson(value);
+    }
+
+    /**
+     * Tells whether the stored bytes are in the binary form.
+     */
+    public boolean isBinary(byte[] stored) {
+        return BinaryRecords.isBinary(stored);
+    }
+
+    /**
+     * @return the binary form of the value, {@code null} for a {@code null} value
+     */
+    public byte[] encodeBinary(T value) {
+        return value == null ? null : binaryEncoder.apply(value);
+    }
+
+    /**
+     * @return the decoded value, {@code null} if {@code stored} is {@code null} or JSON null
+     * @throws JsonSyntaxException if the bytes aren't a valid record of the type in either form
+     */
+    @Override
+    public T decode(byte[] stored) {
+        if (stored != null && isBinary(stored)) {
+            return binaryDecoder.apply(stored);
+        }
+        return super.decode(stored);
+    }
+}
@@ -0,0 +1,302 @@
+package net.wizards.etherest.bot.util;
+
+import com.google.gson.JsonSyntaxException;
+import net.wizards.etherest.bot.EtherListener;
+import net.wizards.etherest.bot.dom.Client;
+import net.wizards.etherest.bot.dom.PaymentClaim;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary encoding of the client and payment claim records. A record starts with a version byte below
+ * {@code 0x09}, which no JSON document starts with, followed by a presence bitmask and the present fields:
+ * integers as varints, language codes as indexes into {@link #LANGS}, wallet addresses in {@code 0x} hex form
+ * as their 20 raw bytes, other strings as a varint length and UTF-8.
+ * <p>
+ * The format of a version is fixed: new fields need a new version, and {@link #LANGS} may only be appended to.
+ * Version 2 adds the conversation state of the client as a string; clients without one are still written as
+ * version 1, which older builds can read.
+ */
+final class BinaryRecords {
+    static final byte VERSION_1 = 0x01;
+    static final byte VERSION_2 = 0x02;
+    private static final int MAX_VERSION = 0x08;
+
+    private static final String[] LANGS = {
+            "en", "ru", "uk", "be", "kk", "uz", "de", "fr", "es", "it", "pt", "pt-br", "pl", "tr", "nl",
+            "zh", "zh-hans", "ja", "ko", "ar", "fa", "he", "hi", "id", "vi", "th", "cs", "ro", "hu", "sv"};
+
+    private static final int WALLET_STRING = 0;
+    private static final int WALLET_HEX_LOWER = 1;
+    private static final int WALLET_HEX_UPPER = 2;
+    private static final int WALLET_HEX_DIGITS = 40;
+
+    private BinaryRecords() {
+        throw new RuntimeException();
+    }
+
+    /**
+     * Tells whether the stored value is a binary record rather than JSON.
+     */
+    static boolean isBinary(byte[] value) {
+        return value != null && value.length > 0 && value[0] >= 0 && value[0] <= MAX_VERSION;
+    }
+
+    static byte[] encodeClient(Client client) {
+        Out out = new Out();
+        out.put(client.getExpect() == null ? VERSION_1 : VERSION_2);
+        out.varint(client.getId() & 0xffffffffL);
+        out.put(flags(client.getFirstName(), client.getLastName(), client.getUserName(), client.getLangCode(),
+                client.getWalletId(), client.getExpect()));
+        out.string(client.getFirstName());
+        out.string(client.getLastName());
+        out.string(client.getUserName());
+        out.lang(client.getLangCode());
+        out.wallet(client.getWalletId());
+        if (client.getExpect() != null) {
+            out.string(client.getExpect().name());
+        }
+        return out.toByteArray();
+    }
+
+    static Client decodeClient(byte[] value) {
+        In in = new In(value);
+        int version = in.version(VERSION_2);
+        Client.Builder builder = new Client.Builder().setId((int) in.varint());
+        int flags = in.get();
+        if ((flags & 1) != 0) builder.setFirstName(in.string());
+        if ((flags & 2) != 0) builder.setLastName(in.string());
+        if ((flags & 4) != 0) builder.setUserName(in.string());
+        if ((flags & 8) != 0) builder.setLangCode(in.lang());
+        if ((flags & 16) != 0) builder.setWalletId(in.wallet());
+        if ((flags & 32) != 0 && version >= VERSION_2) builder.setExpect(EtherListener.Expect.of(in.string()));
+        return builder.build();
+    }
+
+    static byte[] encodeClaim(PaymentClaim claim) {
+        Out out = new Out();
+        out.put(VERSION_1);
+        out.put(flags(claim.getWalletId(), claim.getPaySystem(), claim.getAmount(), claim.getUserName(),
+                claim.getChatId()));
+        out.wallet(claim.getWalletId());
+        out.string(claim.getPaySystem());
+        if (claim.getAmount() != null) {
+            out.fixed64(Double.doubleToLongBits(claim.getAmount()));
+        }
+        out.string(claim.getUserName());
+        if (claim.getChatId() != null) {
+            long chatId = claim.getChatId();
+            out.varint((chatId << 1) ^ (chatId >> 63));
+        }
+        return out.toByteArray();
+    }
+
+    static PaymentClaim decodeClaim(byte[] value) {
+        In in = new In(value);
+        in.version(VERSION_1);
+        PaymentClaim claim = new PaymentClaim();
+        int flags = in.get();
+        if ((flags & 1) != 0) claim.setWalletId(in.wallet());
+        if ((flags & 2) != 0) claim.setPaySystem(in.string());
+        if ((flags & 4) != 0) claim.setAmount(Double.longBitsToDouble(in.fixed64()));
+        if ((flags & 8) != 0) claim.setUserName(in.string());
+        if ((flags & 16) != 0) {
+            long zigzag = in.varint();
+            claim.setChatId((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        return claim;
+    }
+
+    private static int flags(Object... fields) {
+        int flags = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] != null) {
+                flags |= 1 << i;
+            }
+        }
+        return flags;
+    }
+
+    private static int hexCase(String wallet) {
+        if (wallet.length() != WALLET_HEX_DIGITS + 2 || !wallet.startsWith("0x")) {
+            return WALLET_STRING;
+        }
+        boolean lower = false;
+        boolean upper = false;
+        for (int i = 2; i < wallet.length(); i++) {
+            char c = wallet.charAt(i);
+            if (c >= 'a' && c <= 'f') {
+                lower = true;
+            } else if (c >= 'A' && c <= 'F') {
+                upper = true;
+            } else if (c < '0' || c > '9') {
+                return WALLET_STRING;
+            }
+        }
+        // mixed case carries a checksum that the raw bytes would lose
+        return lower && upper ? WALLET_STRING : upper ? WALLET_HEX_UPPER : WALLET_HEX_LOWER;
+    }
+
+    private static final class Out {
+        private byte[] buf = new byte[64];
+        private int count;
+
+        void put(int b) {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        void varint(long value) {
+            ensure(10);
+            while ((value & ~0x7fL) != 0) {
+                buf[count++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buf[count++] = (byte) value;
+        }
+
+        void fixed64(long value) {
+            ensure(8);
+            for (int i = 0; i < 8; i++) {
+                buf[count++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void string(String value) {
+            if (value != null) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                varint(bytes.length);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, count, bytes.length);
+                count += bytes.length;
+            }
+        }
+
+        void lang(String lang) {
+            if (lang == null) {
+                return;
+            }
+            for (int i = 0; i < LANGS.length; i++) {
+                if (LANGS[i].equals(lang)) {
+                    put(i + 1);
+                    return;
+                }
+            }
+            put(0);
+            string(lang);
+        }
+
+        void wallet(String wallet) {
+            if (wallet == null) {
+                return;
+            }
+            int kind = hexCase(wallet);
+            put(kind);
+            if (kind == WALLET_STRING) {
+                string(wallet);
+                return;
+            }
+            ensure(WALLET_HEX_DIGITS / 2);
+            for (int i = 2; i < wallet.length(); i += 2) {
+                buf[count++] = (byte) (Character.digit(wallet.charAt(i), 16) << 4
+                        | Character.digit(wallet.charAt(i + 1), 16));
+            }
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, count);
+        }
+    }
+
+    private static final class In {
+        private static final char[] HEX_LOWER = "0123456789abcdef".toCharArray();
+        private static final char[] HEX_UPPER = "0123456789ABCDEF".toCharArray();
+
+        private final byte[] buf;
+        private int pos;
+
+        In(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int version(int latest) {
+            int version = get();
+            if (version < VERSION_1 || version > latest) {
+                throw new JsonSyntaxException("Unsupported record version " + version);
+            }
+            return version;
+        }
+
+        int get() {
+            if (pos >= buf.length) {
+                throw new JsonSyntaxException("Truncated record");
+            }
+            return buf[pos++] & 0xff;
+        }
+
+        long varint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = get();
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new JsonSyntaxException("Malformed varint");
+        }
+
+        long fixed64() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value |= (long) get() << (i * 8);
+            }
+            return value;
+        }
+
+        String string() {
+            long length = varint();
+            if (length > buf.length - pos) {
+                throw new JsonSyntaxException("Truncated record");
+            }
+            String value = new String(buf, pos, (int) length, StandardCharsets.UTF_8);
+            pos += (int) length;
+            return value;
+        }
+
+        String lang() {
+            int index = get();
+            if (index == 0) {
+                return string();
+            }
+            if (index > LANGS.length) {
+                throw new JsonSyntaxException("Unknown language index " + index);
+            }
+            return LANGS[index - 1];
+        }
+
+        String wallet() {
+            int kind = get();
+            if (kind == WALLET_STRING) {
+                return string();
+            }
+            char[] digits = kind == WALLET_HEX_UPPER ? HEX_UPPER : HEX_LOWER;
+            char[] wallet = new char[WALLET_HEX_DIGITS + 2];
+            wallet[0] = '0';
+            wallet[1] = 'x';
+            for (int i = 2; i < wallet.length; i += 2) {
+                int b = get();
+                wallet[i] = digits[b >> 4];
+                wallet[i + 1] = digits[b & 0xf];
+            }
+            return new String(wallet);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package net.wizards.etherest.bot.util;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Converts values of one type to and from UTF-8 JSON bytes with a fixed {@link TypeAdapter}, reading and writing
+ * the bytes directly without an intermediate {@code String}. Instances are stateless and shared.
+ *
+ * @see BinaryCodec
+ */
+public class Codec<T> {
+    private final TypeAdapter<T> adapter;
+
+    Codec(TypeAdapter<T> adapter) {
+        this.adapter = adapter;
+    }
+
+    public TypeAdapter<T> adapter() {
+        return adapter;
+    }
+
+    /**
+     * @return the stored form of the value, {@code null} for a {@code null} value
+     */
+    public byte[] encode(T value) {
+        return encodeJson(value);
+    }
+
+    /**
+     * @return the JSON bytes, {@code null} for a {@code null} value
+     */
+    public byte[] encodeJson(T value) {
+        if (value == null) {
+            return null;
+        }
+        Utf8Writer out = new Utf8Writer();
+        try {
+            JsonWriter writer = new JsonWriter(out);
+            writer.setSerializeNulls(false);
+            writer.setLenient(true);
+            adapter.write(writer, value);
+            writer.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return the decoded value, {@code null} if {@code json} is {@code null} or JSON null
+     * @throws JsonSyntaxException if the bytes aren't a valid record of the type
+     */
+    public T decode(byte[] json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            JsonReader reader = new JsonReader(new Utf8Reader(json));
+            reader.setLenient(true);
+            return adapter.read(reader);
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * Decodes UTF-8 from an array without the 8K buffer of an {@code InputStreamReader}. Malformed sequences
+     * decode to U+FFFD.
+     */
+    private static final class Utf8Reader extends Reader {
+        private final byte[] bytes;
+        private int pos;
+        private char pendingLow;
+
+        Utf8Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            int n = 0;
+            if (pendingLow != 0) {
+                cbuf[off + n++] = pendingLow;
+                pendingLow = 0;
+            }
+            while (n < len && pos < bytes.length) {
+                int b = bytes[pos];
+                if (b >= 0) {
+                    cbuf[off + n++] = (char) b;
+                    pos++;
+                    continue;
+                }
+                int cp = decode();
+                if (cp >= 0x10000) {
+                    cbuf[off + n++] = Character.highSurrogate(cp);
+                    if (n < len) {
+                        cbuf[off + n++] = Character.lowSurrogate(cp);
+                    } else {
+                        pendingLow = Character.lowSurrogate(cp);
+                    }
+                } else {
+                    cbuf[off + n++] = (char) cp;
+                }
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        private int decode() {
+            int b = bytes[pos] & 0xff;
+            int extra;
+            int cp;
+            if (b >= 0xf0 && b <= 0xf4) {
+                extra = 3;
+                cp = b & 0x07;
+            } else if (b >= 0xe0) {
+                extra = b <= 0xef ? 2 : -1;
+                cp = b & 0x0f;
+            } else if (b >= 0xc2) {
+                extra = 1;
+                cp = b & 0x1f;
+            } else {
+                extra = -1;
+                cp = 0;
+            }
+            if (extra < 0 || pos + extra >= bytes.length) {
+                pos++;
+                return 0xfffd;
+            }
+            for (int i = 1; i <= extra; i++) {
+                int c = bytes[pos + i] & 0xff;
+                if ((c & 0xc0) != 0x80) {
+                    pos += i;
+                    return 0xfffd;
+                }
+                cp = (cp << 6) | (c & 0x3f);
+            }
+            pos += extra + 1;
+            return cp;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Encodes UTF-8 into a growable array, so the result needs no further conversion.
+     */
+    private static final class Utf8Writer extends Writer {
+        private byte[] buf = new byte[256];
+        private int count;
+        private char pendingHigh;
+
+        @Override
+        public void write(int c) {
+            ensure(4);
+            put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            ensure(len * 3 + 1);
+            for (int i = off; i < off + len; i++) {
+                put(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            ensure(len * 3 + 1);
+            for (int i = off; i < off + len; i++) {
+                put(str.charAt(i));
+            }
+        }
+
+        private void put(char c) {
+            if (pendingHigh != 0) {
+                char high = pendingHigh;
+                pendingHigh = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int cp = Character.toCodePoint(high, c);
+                    buf[count++] = (byte) (0xf0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                    return;
+                }
+                buf[count++] = '?';
+            }
+            if (c < 0x80) {
+                buf[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[count++] = (byte) (0xc0 | (c >> 6));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+            } else if (Character.isLowSurrogate(c)) {
+                buf[count++] = '?';
+            } else {
+                buf[count++] = (byte) (0xe0 | (c >> 12));
+                buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void ensure(int extra) {
+            if (count + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + extra));
+            }
+        }
+
+        byte[] toByteArray() {
+            if (pendingHigh != 0) {
+                ensure(1);
+                buf[count++] = '?';
+                pendingHigh = 0;
+            }
+            return Arrays.copyOf(buf, count);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package net.wizards.etherest.bot.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import net.wizards.etherest.bot.EtherListener;
+import net.wizards.etherest.bot.dom.Client;
+import net.wizards.etherest.bot.dom.PaymentClaim;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Codecs of the records kept in Redis. The adapters are hand-written for the stored JSON layout, which is the
+ * one Gson produces by reflection, so records written before and after are interchangeable. Client and claim
+ * records also have a compact binary form, see {@link BinaryRecords}.
+ */
+public final class Codecs {
+    public static final BinaryCodec<Client> CLIENT = new BinaryCodec<>(new ClientAdapter(),
+            BinaryRecords::encodeClient, BinaryRecords::decodeClient);
+    public static final BinaryCodec<PaymentClaim> CLAIM = new BinaryCodec<>(new PaymentClaimAdapter(),
+            BinaryRecords::encodeClaim, BinaryRecords::decodeClaim);
+    public static final Codec<Set<Long>> OPERATORS = new Codec<>(new OperatorsAdapter());
+
+    /**
+     * Shared Gson instance with the adapters above registered, for code that needs a {@link Gson}.
+     */
+    public static final Gson GSON = new GsonBuilder()
+            .registerTypeAdapter(Client.class, CLIENT.adapter())
+            .registerTypeAdapter(PaymentClaim.class, CLAIM.adapter())
+            .create();
+
+    private Codecs() {
+        throw new RuntimeException();
+    }
+
+    private static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    private static void field(JsonWriter out, String name, String value) throws IOException {
+        if (value != null) {
+            out.name(name).value(value);
+        }
+    }
+
+    private static final class ClientAdapter extends TypeAdapter<Client> {
+        @Override
+        public void write(JsonWriter out, Client client) throws IOException {
+            if (client == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("id").value(client.getId());
+            field(out, "firstName", client.getFirstName());
+            field(out, "lastName", client.getLastName());
+            field(out, "userName", client.getUserName());
+            field(out, "langCode", client.getLangCode());
+            field(out, "walletId", client.getWalletId());
+            if (client.getExpect() != null) {
+                out.name("expect").value(client.getExpect().name());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public Client read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Client.Builder builder = new Client.Builder();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id":
+                        builder.setId(in.nextInt());
+                        break;
+                    case "firstName":
+                        builder.setFirstName(nextString(in));
+                        break;
+                    case "lastName":
+                        builder.setLastName(nextString(in));
+                        break;
+                    case "userName":
+                        builder.setUserName(nextString(in));
+                        break;
+                    case "langCode":
+                        builder.setLangCode(nextString(in));
+                        break;
+                    case "walletId":
+                        builder.setWalletId(nextString(in));
+                        break;
+                    case "expect":
+                        builder.setExpect(EtherListener.Expect.of(nextString(in)));
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return builder.build();
+        }
+    }
+
+    private static final class PaymentClaimAdapter extends TypeAdapter<PaymentClaim> {
+        @Override
+        public void write(JsonWriter out, PaymentClaim claim) throws IOException {
+            if (claim == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            field(out, "walletId", claim.getWalletId());
+            field(out, "paySystem", claim.getPaySystem());
+            if (claim.getAmount() != null) {
+                out.name("amount").value(claim.getAmount());
+            }
+            field(out, "userName", claim.getUserName());
+            if (claim.getChatId() != null) {
+                out.name("chatId").value(claim.getChatId());
+            }
+            out.endObject();
+        }
+
+        @Override
+        public PaymentClaim read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            PaymentClaim claim = new PaymentClaim();
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (name) {
+                    case "walletId":
+                        claim.setWalletId(in.nextString());
+                        break;
+                    case "paySystem":
+                        claim.setPaySystem(in.nextString());
+                        break;
+                    case "amount":
+                        claim.setAmount(in.nextDouble());
+                        break;
+                    case "userName":
+                        claim.setUserName(in.nextString());
+                        break;
+                    case "chatId":
+                        claim.setChatId(in.nextLong());
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return claim;
+        }
+    }
+
+    private static final class OperatorsAdapter extends TypeAdapter<Set<Long>> {
+        @Override
+        public void write(JsonWriter out, Set<Long> operators) throws IOException {
+            if (operators == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginArray();
+            for (Long chatId : operators) {
+                if (chatId != null) {
+                    out.value(chatId);
+                }
+            }
+            out.endArray();
+        }
+
+        @Override
+        public Set<Long> read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Set<Long> operators = new HashSet<>();
+            in.beginArray();
+            while (in.hasNext()) {
+                operators.add(in.nextLong());
+            }
+            in.endArray();
+            return operators;
+        }
+    }
+}
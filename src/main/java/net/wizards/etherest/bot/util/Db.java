@@ -1,96 +1,163 @@
 package net.wizards.etherest.bot.util;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
 import net.wizards.etherest.Config;
-import net.wizards.etherest.bot.EtherListener;
 import net.wizards.etherest.bot.dom.Client;
 import net.wizards.etherest.bot.dom.PaymentClaim;
+import net.wizards.etherest.database.NearCache;
 import net.wizards.etherest.database.Redis;
+import net.wizards.etherest.database.Stats;
 import net.wizards.etherest.util.Misc;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
+import redis.clients.jedis.Response;
 
-import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.function.Consumer;
+import java.util.function.Function;
 
 public class Db {
     private static Redis redis = Redis.getInstance();
-    private static Config cfg = Config.get();
 
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Db.class.getSimpleName());
     private static final Marker TAG_REDIS = MarkerManager.getMarker("REDIS");
 
     private static final String CLIENT_KEY_PREFIX = "client:";
-    private static final String EXPECT_KEY_SUFFIX = ":expect";
     private static final String CLAIM_KEY_SUFFIX = ":claim";
+    private static final String HASH_KEY_SUFFIX = ":h";
     private static final String OPERATOR_LIST_KEY = "operators";
 
-    private static final Type setType = new TypeToken<Set<Long>>(){}.getType();
+    private static final ThreadLocal<UnitOfWork> unitOfWork = new ThreadLocal<>();
+
+    private static final NearCache<Integer, Client> clientCache = new NearCache<>(
+            Misc.nvl(Config.get().getClientCacheSize(), 0), Misc.nvl(Config.get().getClientCacheTtl(), 0) * 1000L);
+    private static final String INVALIDATION_CHANNEL = "client:invalidate";
+    private static final String INSTANCE_ID = UUID.randomUUID().toString();
+
+    private static volatile boolean hashStorage = isHashStorageConfigured();
+
+    static {
+        if (Misc.nvl(Config.get().isClientCacheInvalidation(), false)) {
+            redis.subscribe(INVALIDATION_CHANNEL, Db::onInvalidation);
+        }
+        RecordMigrator.reconfig();
+        Config.addReloadListener(RecordMigrator::reconfig);
+        Config.addReloadListener(Db::onStorageReload);
+    }
 
-    private static final int EXPECT_EXPIRY = 86400;
     private static final int CLAIM_EXPIRY = 86400;
 
     private Db() {
         throw new RuntimeException();
     }
 
-    public static Client readClient(int id) {
-        final String key = CLIENT_KEY_PREFIX + id;
-        try {
-            Client client = new Gson().fromJson(redis.get(key), Client.class);
-            if (cfg.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, "Client read from Redis: " + client);
-            }
-            return client;
-        } catch (Exception e) {
-            return null;
-        }
+    /**
+     * Opens a unit of work for one update of the client on the current thread. Client record and payment claim
+     * are fetched in a single pipelined round trip; writes made through this class are queued in memory and sent
+     * by {@link #commit()} in one MULTI/EXEC round trip. No connection is held in between.
+     */
+    public static void begin(int clientId) {
+        commit();
+        unitOfWork.set(new UnitOfWork(clientId));
     }
 
-    public static void writeClient(Client client) {
-        final String key = CLIENT_KEY_PREFIX + client.getId();
-        redis.set(key, new Gson().toJson(client), cfg.getClientDataExpiry());
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Client written to Redis: " + client);
+    /**
+     * Sends the writes of the current unit of work, if any.
+     */
+    public static void commit() {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            unitOfWork.remove();
+            work.commit();
         }
     }
 
-    public static void setClientExpect(Client client, EtherListener.Expect expect) {
-        final String key = CLIENT_KEY_PREFIX + client.getId() + EXPECT_KEY_SUFFIX;
-        redis.set(key, new Gson().toJson(expect), EXPECT_EXPIRY);
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Expect (" + expect + ") written to Redis for " + client);
+    /**
+     * Drops the current unit of work together with the writes it queued, so a failed update leaves the stored
+     * records as they were.
+     */
+    public static void rollback() {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            unitOfWork.remove();
+            logger.debug(TAG_CLASS, "{} queued writes of client {} discarded", work.writes.size(), work.clientId);
         }
     }
 
-    public static void delClientExpect(Client client) {
-        final String key = CLIENT_KEY_PREFIX + client.getId() + EXPECT_KEY_SUFFIX;
-        redis.del(key);
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Expect cleared in Redis for " + client);
+    public static Client readClient(int id) {
+        UnitOfWork work = current(id);
+        if (work != null) {
+            return work.client;
+        }
+        Client cached = clientCache.get(id);
+        if (cached != null) {
+            return cached.copy();
         }
+        Client client = null;
+        if (hashStorage) {
+            client = decodeClientFields(redis.hmget(clientHashKey(id), HashRecords.CLIENT_FIELDS));
+        }
+        if (client == null) {
+            client = decodeClient(redis.getBytes(clientKey(id)));
+        }
+        if (client != null) {
+            clientCache.put(id, client.copy());
+        }
+        return client;
     }
 
-    public static EtherListener.Expect getClientExpect(Client client) {
-        final String key = CLIENT_KEY_PREFIX + client.getId() + EXPECT_KEY_SUFFIX;
-        EtherListener.Expect expect = new Gson().fromJson(redis.get(key), EtherListener.Expect.class);
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Expect (" + expect + ") read from Redis for " + client);
+    public static void writeClient(Client client) {
+        UnitOfWork work = current(client.getId());
+        if (hashStorage) {
+            Map<String, String> set = new HashMap<>();
+            List<String> removed = new ArrayList<>();
+            HashRecords.clientChanges(client, work == null || !work.stored, set, removed);
+            if (work != null) {
+                work.queue(batch -> writeHash(batch, clientHashKey(client.getId()), set, removed,
+                        Config.get().getClientDataExpiry()));
+                work.written = client.copy();
+            } else {
+                writeHash(clientHashKey(client.getId()), set, removed, Config.get().getClientDataExpiry());
+                onClientWritten(client.copy());
+            }
+            if (Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Client fields {} written to Redis, {} removed: {}", set.keySet(), removed, client);
+            }
+            return;
+        }
+        final byte[] json = Codecs.CLIENT.encode(client);
+        if (work != null) {
+            work.queue(batch -> batch.set(clientKey(client.getId()), json, Config.get().getClientDataExpiry()));
+            work.written = client.copy();
+        } else {
+            redis.set(clientKey(client.getId()), json, Config.get().getClientDataExpiry());
+            onClientWritten(client.copy());
+        }
+        if (Config.get().isLogRedisDataFlow()) {
+            logger.debug(TAG_REDIS, "Client written to Redis: {}", client);
         }
-        return expect;
     }
 
     public static Set<Long> getOperators() {
+        UnitOfWork work = unitOfWork.get();
+        if (work != null && work.operators != null) {
+            return new HashSet<>(work.operators);
+        }
         try {
-            Set<Long> operators = Misc.nvl(new Gson().fromJson(redis.get(OPERATOR_LIST_KEY), setType), new HashSet<>());
-            if (cfg.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, "Operator chat list read from Redis: " + operators);
+            byte[] stored = work != null
+                    ? work.read(batch -> batch.getBytes(OPERATOR_LIST_KEY))
+                    : redis.getBytes(OPERATOR_LIST_KEY);
+            Set<Long> operators = Misc.nvl(Codecs.OPERATORS.decode(stored), new HashSet<>());
+            if (Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Operator chat list read from Redis: {}", operators);
             }
             return operators;
         } catch (Exception e) {
@@ -101,18 +168,185 @@ public class Db {
     public static void addOperator(long chatId) {
         Set<Long> operators = getOperators();
         operators.add(chatId);
-        redis.set(OPERATOR_LIST_KEY, new Gson().toJson(operators), cfg.getClientDataExpiry());
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Operator list written to Redis: " + operators);
+        final byte[] json = Codecs.OPERATORS.encode(operators);
+        UnitOfWork work = unitOfWork.get();
+        if (work != null) {
+            work.queue(batch -> batch.set(OPERATOR_LIST_KEY, json, Config.get().getClientDataExpiry()));
+            work.operators = operators;
+        } else {
+            redis.set(OPERATOR_LIST_KEY, json, Config.get().getClientDataExpiry());
+        }
+        if (Config.get().isLogRedisDataFlow()) {
+            logger.debug(TAG_REDIS, "Operator list written to Redis: {}", operators);
         }
     }
 
     public static PaymentClaim getClaim(Client client) {
+        UnitOfWork work = current(client.getId());
+        if (work != null) {
+            return work.claim;
+        }
+        if (hashStorage) {
+            PaymentClaim claim = decodeClaimFields(redis.hmget(claimHashKey(client.getId()), HashRecords.CLAIM_FIELDS));
+            if (claim != null) {
+                return claim;
+            }
+        }
+        return decodeClaim(redis.getBytes(claimKey(client.getId())));
+    }
+
+    public static void updateClaim(Client client, Consumer<PaymentClaim> setter) {
+        PaymentClaim claim = getClaim(client);
+        UnitOfWork work = current(client.getId());
+        if (hashStorage) {
+            Map<String, String> before = HashRecords.claimFields(claim);
+            setter.accept(claim);
+            Map<String, String> set = new HashMap<>();
+            List<String> removed = new ArrayList<>();
+            HashRecords.claimChanges(before, HashRecords.claimFields(claim), set, removed);
+            if (set.isEmpty() && removed.isEmpty()) {
+                return;
+            }
+            if (work != null) {
+                work.queue(batch -> writeHash(batch, claimHashKey(client.getId()), set, removed, CLAIM_EXPIRY));
+            } else {
+                writeHash(claimHashKey(client.getId()), set, removed, CLAIM_EXPIRY);
+            }
+            if (Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Payment claim fields {} updated, {} removed: {}", set.keySet(), removed, claim);
+            }
+            return;
+        }
+        setter.accept(claim);
+        final byte[] json = Codecs.CLAIM.encode(claim);
+        if (work != null) {
+            work.queue(batch -> batch.set(claimKey(client.getId()), json, CLAIM_EXPIRY));
+        } else {
+            redis.set(claimKey(client.getId()), json, CLAIM_EXPIRY);
+        }
+        if (Config.get().isLogRedisDataFlow()) {
+            logger.debug(TAG_REDIS, "Payment claim updated: {}", claim);
+        }
+    }
+
+    public static Stats.CacheStats getClientCacheStats() {
+        return clientCache.getStats();
+    }
+
+    public static Stats.MigrationStats getRecordMigrationStats() {
+        return RecordMigrator.getStats();
+    }
+
+    /**
+     * Write-through of a stored client into the near-cache, other instances drop their copy.
+     */
+    private static void onClientWritten(Client client) {
+        clientCache.put(client.getId(), client);
+        if (Misc.nvl(Config.get().isClientCacheInvalidation(), false)) {
+            try {
+                redis.publish(INVALIDATION_CHANNEL, INSTANCE_ID + " " + client.getId());
+            } catch (Exception e) {
+                logger.warn(TAG_CLASS, "Failed to publish client cache invalidation", e);
+            }
+        }
+    }
+
+    private static void onInvalidation(String message) {
+        String[] parts = message.split(" ");
+        if (parts.length == 2 && !INSTANCE_ID.equals(parts[0])) {
+            try {
+                clientCache.invalidate(Integer.valueOf(parts[1]));
+            } catch (NumberFormatException e) {
+                logger.warn(TAG_CLASS, "Malformed client cache invalidation: " + message);
+            }
+        }
+    }
+
+    private static boolean isHashStorageConfigured() {
+        return "hash".equalsIgnoreCase(Config.get().getClientStorage());
+    }
+
+    /**
+     * Cached clients may be missing from the storage switched to, so the near-cache starts over.
+     */
+    private static void onStorageReload() {
+        boolean hash = isHashStorageConfigured();
+        if (hash != hashStorage) {
+            hashStorage = hash;
+            clientCache.clear();
+            logger.info(TAG_CLASS, "Client storage switched to " + (hash ? "hash" : "string") + " keys");
+        }
+    }
+
+    /**
+     * Queues the field changes of a hash: removed fields first, then the set ones with the new time to live.
+     */
+    private static void writeHash(Redis.Batch batch, String key, Map<String, String> set, List<String> removed,
+                                  int expireSeconds) {
+        if (!removed.isEmpty()) {
+            batch.hdel(key, removed.toArray(new String[0]));
+        }
+        batch.hset(key, set, expireSeconds);
+    }
+
+    private static void writeHash(String key, Map<String, String> set, List<String> removed, int expireSeconds) {
+        try (Redis.Batch batch = redis.batch()) {
+            batch.multi();
+            writeHash(batch, key, set, removed, expireSeconds);
+            batch.flush();
+        }
+    }
+
+    private static UnitOfWork current(int clientId) {
+        UnitOfWork work = unitOfWork.get();
+        return work != null && work.clientId == clientId ? work : null;
+    }
+
+    private static String clientKey(int id) {
+        return CLIENT_KEY_PREFIX + id;
+    }
+
+    private static String claimKey(int id) {
+        return CLIENT_KEY_PREFIX + id + CLAIM_KEY_SUFFIX;
+    }
+
+    private static String clientHashKey(int id) {
+        return CLIENT_KEY_PREFIX + id + HASH_KEY_SUFFIX;
+    }
+
+    private static String claimHashKey(int id) {
+        return CLIENT_KEY_PREFIX + id + CLAIM_KEY_SUFFIX + HASH_KEY_SUFFIX;
+    }
+
+    private static Client decodeClient(byte[] json) {
+        try {
+            Client client = Codecs.CLIENT.decode(json);
+            if (Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Client read from Redis: {}", client);
+            }
+            return client;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static Client decodeClientFields(List<String> values) {
+        try {
+            Client client = HashRecords.client(values);
+            if (client != null && Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Client read from Redis hash: {}", client);
+            }
+            return client;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static PaymentClaim decodeClaim(byte[] json) {
         try {
-            final String key = CLIENT_KEY_PREFIX + client.getId() + CLAIM_KEY_SUFFIX;
-            PaymentClaim claim = Misc.nvl(new Gson().fromJson(redis.get(key), PaymentClaim.class), new PaymentClaim());
-            if (cfg.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, "Payment claim read from Redis: " + claim);
+            PaymentClaim claim = Misc.nvl(Codecs.CLAIM.decode(json), new PaymentClaim());
+            if (Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Payment claim read from Redis: {}", claim);
             }
             return claim;
         } catch (Exception e) {
@@ -120,13 +354,139 @@ public class Db {
         }
     }
 
-    public static void updateClaim(Client client, Consumer<PaymentClaim> setter) {
-        PaymentClaim claim = getClaim(client);
-        setter.accept(claim);
-        final String key = CLIENT_KEY_PREFIX + client.getId() + CLAIM_KEY_SUFFIX;
-        redis.set(key, new Gson().toJson(claim), CLAIM_EXPIRY);
-        if (cfg.isLogRedisDataFlow()) {
-            logger.debug(TAG_REDIS, "Payment claim updated: " + claim);
+    private static PaymentClaim decodeClaimFields(List<String> values) {
+        try {
+            PaymentClaim claim = HashRecords.claim(values);
+            if (claim != null && Config.get().isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Payment claim read from Redis hash: {}", claim);
+            }
+            return claim;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Per-update view of one client's keys: values prefetched in {@link #begin(int)} (the client record comes from
+     * the near-cache when present), writes queued until {@link #commit()} sends them in one transaction. The
+     * pooled connection is only borrowed for these two round trips, not while the update is being handled.
+     */
+    private static class UnitOfWork {
+        private final int clientId;
+        private final List<Consumer<Redis.Batch>> writes = new ArrayList<>();
+        private Client client;
+        private PaymentClaim claim;
+        private Client written;
+        private Set<Long> operators;
+        private boolean stored;
+
+        UnitOfWork(int clientId) {
+            this.clientId = clientId;
+            try (Redis.Batch batch = redis.batch()) {
+                if (hashStorage) {
+                    prefetchHashes(batch);
+                } else {
+                    prefetchStrings(batch);
+                }
+            }
+        }
+
+        private void prefetchStrings(Redis.Batch batch) {
+            Client cached = clientCache.get(clientId);
+            Response<byte[]> clientJson = cached == null ? batch.getBytes(clientKey(clientId)) : null;
+            Response<byte[]> claimJson = batch.getBytes(claimKey(clientId));
+            batch.flush();
+            if (cached != null) {
+                client = cached.copy();
+            } else {
+                client = decodeClient(clientJson.get());
+                if (client != null) {
+                    clientCache.put(clientId, client.copy());
+                }
+            }
+            claim = decodeClaim(claimJson.get());
+        }
+
+        /**
+         * Reads the hashes and the string keys they replace in the same round trip; for a cached client only
+         * whether its hash exists. Records not in hashes yet are moved there in this unit's transaction.
+         */
+        private void prefetchHashes(Redis.Batch batch) {
+            Client cached = clientCache.get(clientId);
+            Response<List<String>> clientFields = cached == null
+                    ? batch.hmget(clientHashKey(clientId), HashRecords.CLIENT_FIELDS) : null;
+            Response<Boolean> clientHashExists = cached != null ? batch.exists(clientHashKey(clientId)) : null;
+            Response<byte[]> legacyClient = cached == null ? batch.getBytes(clientKey(clientId)) : null;
+            Response<byte[]> legacyClaim = batch.getBytes(claimKey(clientId));
+            Response<List<String>> claimFields = batch.hmget(claimHashKey(clientId), HashRecords.CLAIM_FIELDS);
+            batch.flush();
+            claim = decodeClaimFields(claimFields.get());
+            if (cached != null) {
+                // the cached copy may have been read from the string key by a reader outside a unit of work
+                client = cached.copy();
+                stored = clientHashExists.get();
+            } else {
+                client = decodeClientFields(clientFields.get());
+                stored = client != null;
+                if (client == null && legacyClient.get() != null) {
+                    client = decodeClient(legacyClient.get());
+                    if (client == null) {
+                        queue(b -> b.del(clientKey(clientId)));
+                    }
+                }
+                if (client != null) {
+                    clientCache.put(clientId, client.copy());
+                }
+            }
+            if (client != null && !stored) {
+                Map<String, String> set = new HashMap<>();
+                List<String> removed = new ArrayList<>();
+                HashRecords.clientChanges(client, true, set, removed);
+                queue(b -> {
+                    writeHash(b, clientHashKey(clientId), set, removed, Config.get().getClientDataExpiry());
+                    b.del(clientKey(clientId));
+                });
+                stored = true;
+                logger.debug(TAG_CLASS, "Client {} moved to hash storage", clientId);
+            }
+            if (legacyClaim.get() != null) {
+                if (claim == null) {
+                    claim = decodeClaim(legacyClaim.get());
+                    Map<String, String> fields = HashRecords.claimFields(claim);
+                    queue(b -> writeHash(b, claimHashKey(clientId), fields, new ArrayList<>(), CLAIM_EXPIRY));
+                }
+                queue(b -> b.del(claimKey(clientId)));
+            }
+            claim = Misc.nvl(claim, new PaymentClaim());
+        }
+
+        /**
+         * Reads a key in the middle of the update. Queued writes stay queued, so the update remains all-or-nothing;
+         * values the unit has written are served from the unit instead.
+         */
+        <T> T read(Function<Redis.Batch, Response<T>> command) {
+            try (Redis.Batch batch = redis.batch()) {
+                Response<T> response = command.apply(batch);
+                batch.flush();
+                return response.get();
+            }
+        }
+
+        void queue(Consumer<Redis.Batch> write) {
+            writes.add(write);
+        }
+
+        void commit() {
+            if (!writes.isEmpty()) {
+                try (Redis.Batch batch = redis.batch()) {
+                    batch.multi();
+                    writes.forEach(write -> write.accept(batch));
+                    batch.flush();
+                }
+            }
+            if (written != null) {
+                onClientWritten(written);
+            }
         }
     }
 }
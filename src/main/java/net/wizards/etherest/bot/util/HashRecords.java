@@ -0,0 +1,121 @@
+package net.wizards.etherest.bot.util;
+
+import net.wizards.etherest.bot.EtherListener;
+import net.wizards.etherest.bot.dom.Client;
+import net.wizards.etherest.bot.dom.PaymentClaim;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Field layout of the client and payment claim records in the {@code hash} storage mode: one Redis hash field
+ * per record field, values as strings, absent fields for {@code null}. The field arrays give the HMGET order.
+ */
+final class HashRecords {
+    static final String[] CLIENT_FIELDS = {"id", "firstName", "lastName", "userName", "langCode", "walletId", "expect"};
+    static final String[] CLAIM_FIELDS = {"walletId", "paySystem", "amount", "userName", "chatId"};
+
+    private HashRecords() {
+        throw new RuntimeException();
+    }
+
+    /**
+     * @param values HMGET reply for {@link #CLIENT_FIELDS}
+     * @return the client, {@code null} if there is no hash
+     */
+    static Client client(List<String> values) {
+        if (values == null || values.get(0) == null) {
+            return null;
+        }
+        return new Client.Builder()
+                .setId(Integer.parseInt(values.get(0)))
+                .setFirstName(values.get(1))
+                .setLastName(values.get(2))
+                .setUserName(values.get(3))
+                .setLangCode(values.get(4))
+                .setWalletId(values.get(5))
+                .setExpect(EtherListener.Expect.of(values.get(6)))
+                .build();
+    }
+
+    /**
+     * Collects the client fields to write. A full write sets every present field; otherwise the identity fields
+     * Telegram supplies are refreshed and of the fields the bot changes only the modified ones are written, so
+     * concurrent updates of different fields don't overwrite each other. Modified fields that became {@code null}
+     * go to {@code removed}.
+     */
+    static void clientChanges(Client client, boolean full, Map<String, String> set, List<String> removed) {
+        put(set, "id", String.valueOf(client.getId()));
+        put(set, "firstName", client.getFirstName());
+        put(set, "lastName", client.getLastName());
+        put(set, "userName", client.getUserName());
+        if (full || client.isModified(Client.LANG_CODE)) {
+            put(set, removed, "langCode", client.getLangCode());
+        }
+        if (full || client.isModified(Client.WALLET_ID)) {
+            put(set, removed, "walletId", client.getWalletId());
+        }
+        if (full || client.isModified(Client.EXPECT)) {
+            put(set, removed, "expect", client.getExpect() == null ? null : client.getExpect().name());
+        }
+    }
+
+    /**
+     * @param values HMGET reply for {@link #CLAIM_FIELDS}
+     * @return the claim, {@code null} if there is no hash
+     */
+    static PaymentClaim claim(List<String> values) {
+        if (values == null || values.stream().allMatch(Objects::isNull)) {
+            return null;
+        }
+        PaymentClaim claim = new PaymentClaim();
+        claim.setWalletId(values.get(0));
+        claim.setPaySystem(values.get(1));
+        claim.setAmount(values.get(2) == null ? null : Double.valueOf(values.get(2)));
+        claim.setUserName(values.get(3));
+        claim.setChatId(values.get(4) == null ? null : Long.valueOf(values.get(4)));
+        return claim;
+    }
+
+    /**
+     * Returns the present fields of the claim, to diff its state before and after an update.
+     */
+    static Map<String, String> claimFields(PaymentClaim claim) {
+        Map<String, String> fields = new HashMap<>();
+        put(fields, "walletId", claim.getWalletId());
+        put(fields, "paySystem", claim.getPaySystem());
+        put(fields, "amount", claim.getAmount() == null ? null : claim.getAmount().toString());
+        put(fields, "userName", claim.getUserName());
+        put(fields, "chatId", claim.getChatId() == null ? null : claim.getChatId().toString());
+        return fields;
+    }
+
+    /**
+     * Collects the fields that differ between two {@link #claimFields} states.
+     */
+    static void claimChanges(Map<String, String> before, Map<String, String> after, Map<String, String> set,
+                             List<String> removed) {
+        for (String field : CLAIM_FIELDS) {
+            String value = after.get(field);
+            if (!Objects.equals(before.get(field), value)) {
+                put(set, removed, field, value);
+            }
+        }
+    }
+
+    private static void put(Map<String, String> fields, String field, String value) {
+        if (value != null) {
+            fields.put(field, value);
+        }
+    }
+
+    private static void put(Map<String, String> set, List<String> removed, String field, String value) {
+        if (value != null) {
+            set.put(field, value);
+        } else {
+            removed.add(field);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package net.wizards.etherest.bot.util;
+
+import net.wizards.etherest.Config;
+import net.wizards.etherest.database.Redis;
+import net.wizards.etherest.database.Stats;
+import net.wizards.etherest.util.Misc;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.regex.Pattern;
+
+/**
+ * Rewrites the client and claim records stored as JSON in the binary format. A pass runs on a background thread
+ * when {@code clientRecordFormat} is {@code binary} and {@code clientRecordMigration} is on, at startup and after
+ * a configuration reload, and stops early if the format is switched back. Each record is replaced only if it
+ * didn't change since it was read, keeping its time to live, so the pass is safe next to live traffic.
+ */
+final class RecordMigrator {
+    private static final Stats.MigrationStats stats = new Stats.MigrationStats();
+    private static Thread thread;
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(RecordMigrator.class.getSimpleName());
+
+    private static final String KEY_PATTERN = "client:*";
+    private static final Pattern CLIENT_KEY = Pattern.compile(".*client:\\d+");
+    private static final Pattern CLAIM_KEY = Pattern.compile(".*client:\\d+:claim");
+
+    private RecordMigrator() {
+        throw new RuntimeException();
+    }
+
+    static synchronized void reconfig() {
+        if (isEnabled() && (thread == null || !thread.isAlive())) {
+            thread = new Thread(RecordMigrator::migrate, "record_migrator");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    static Stats.MigrationStats getStats() {
+        return stats;
+    }
+
+    private static boolean isEnabled() {
+        Config config = Config.get();
+        return "binary".equalsIgnoreCase(config.getClientRecordFormat())
+                && Misc.nvl(config.isClientRecordMigration(), false);
+    }
+
+    private static void migrate() {
+        logger.info(TAG_CLASS, "Record migration to the binary format started");
+        stats.setRunning(true);
+        long migratedBefore = stats.getMigrated();
+        Redis redis = Redis.getInstance();
+        String cursor = ScanParams.SCAN_POINTER_START;
+        try {
+            do {
+                if (!isEnabled()) {
+                    logger.info(TAG_CLASS, "Record migration stopped by configuration");
+                    return;
+                }
+                ScanResult<String> page = redis.scan(cursor, KEY_PATTERN,
+                        Misc.nvl(Config.get().getClientRecordMigrationBatch(), 500));
+                for (String key : page.getResult()) {
+                    if (CLIENT_KEY.matcher(key).matches()) {
+                        migrate(redis, key, Codecs.CLIENT);
+                    } else if (CLAIM_KEY.matcher(key).matches()) {
+                        migrate(redis, key, Codecs.CLAIM);
+                    }
+                }
+                cursor = page.getStringCursor();
+            } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+            logger.info(TAG_CLASS, "Record migration finished: " + (stats.getMigrated() - migratedBefore)
+                    + " record(s) rewritten, " + stats.getSavedBytesPerKey() + " bytes ("
+                    + stats.getSavedPercent() + "%) saved per key on average");
+        } catch (Exception e) {
+            logger.error(TAG_CLASS, "Record migration failed, it resumes on the next start or reload", e);
+        } finally {
+            stats.setRunning(false);
+        }
+    }
+
+    private static <T> void migrate(Redis redis, String key, BinaryCodec<T> codec) {
+        stats.onScanned();
+        byte[] stored = redis.getBytes(key);
+        if (stored == null) {
+            return;
+        }
+        if (codec.isBinary(stored)) {
+            stats.onAlreadyBinary();
+            return;
+        }
+        byte[] binary;
+        try {
+            binary = codec.encodeBinary(codec.decode(stored));
+        } catch (RuntimeException e) {
+            logger.warn(TAG_CLASS, "Record " + key + " can't be decoded, left as is");
+            stats.onSkipped();
+            return;
+        }
+        if (binary != null && redis.replace(key, stored, binary)) {
+            stats.onMigrated(stored.length, binary.length);
+        } else {
+            stats.onSkipped();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package net.wizards.etherest.bot.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Message text compiled once into literal and marker segments.
+ * <ul>
+ * <li>{@code {package.Class.method();}} - bound to the public static no-argument method as a {@link Supplier},
+ * called on every render</li>
+ * <li>{@code {res.key;}} - replaced with the resource string of the same language at compile time</li>
+ * </ul>
+ * Markers that can't be resolved are kept as literal text.
+ */
+public final class Template {
+    private final Object[] segments;
+
+    public static final Template EMPTY = new Template(new Object[0]);
+
+    private static final Pattern MARKER = Pattern.compile("\\{(?:res\\.([\\w_]+)|([\\w.]+)\\.(\\w+)\\(\\));}");
+    private static final int MAX_NESTING = 4;
+    private static final int MAX_RETAINED_CAPACITY = 16 * 1024;
+    private static final ThreadLocal<StringBuilder> builder = ThreadLocal.withInitial(() -> new StringBuilder(1024));
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(Template.class.getSimpleName());
+
+    private Template(Object[] segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * @param resources resolves {@code {res.key;}} markers, may return {@code null} for unknown keys
+     */
+    public static Template compile(String source, Function<String, String> resources) {
+        if (source == null || source.isEmpty()) {
+            return EMPTY;
+        }
+        List<Object> segments = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        parse(source, resources, segments, literal, 0);
+        if (literal.length() > 0) {
+            segments.add(literal.toString());
+        }
+        return new Template(segments.toArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    public StringBuilder renderTo(StringBuilder sb) {
+        for (Object segment : segments) {
+            if (segment instanceof String) {
+                sb.append((String) segment);
+            } else {
+                String value = ((Supplier<String>) segment).get();
+                if (value != null) {
+                    sb.append(value);
+                }
+            }
+        }
+        return sb;
+    }
+
+    public String render() {
+        if (segments.length == 1 && segments[0] instanceof String) {
+            return (String) segments[0];
+        }
+        return finish(renderTo(reusableBuilder()));
+    }
+
+    /**
+     * Renders the templates one after another into a single string.
+     */
+    public static String renderAll(Template... templates) {
+        StringBuilder sb = reusableBuilder();
+        for (Template template : templates) {
+            template.renderTo(sb);
+        }
+        return finish(sb);
+    }
+
+    private static StringBuilder reusableBuilder() {
+        StringBuilder sb = builder.get();
+        sb.setLength(0);
+        return sb;
+    }
+
+    private static String finish(StringBuilder sb) {
+        String result = sb.toString();
+        if (sb.capacity() > MAX_RETAINED_CAPACITY) {
+            builder.remove();
+        }
+        return result;
+    }
+
+    private static void parse(String source, Function<String, String> resources,
+                              List<Object> segments, StringBuilder literal, int depth) {
+        Matcher matcher = MARKER.matcher(source);
+        int last = 0;
+        while (matcher.find()) {
+            literal.append(source, last, matcher.start());
+            last = matcher.end();
+            if (matcher.group(1) != null) {
+                String value = resources.apply(matcher.group(1));
+                if (value != null && depth < MAX_NESTING) {
+                    parse(value, resources, segments, literal, depth + 1);
+                } else {
+                    logger.error(TAG_CLASS, "Can't resolve resource marker " + matcher.group());
+                    literal.append(matcher.group());
+                }
+            } else {
+                Supplier<String> supplier = bind(matcher.group(2), matcher.group(3));
+                if (supplier != null) {
+                    if (literal.length() > 0) {
+                        segments.add(literal.toString());
+                        literal.setLength(0);
+                    }
+                    segments.add(supplier);
+                } else {
+                    literal.append(matcher.group());
+                }
+            }
+        }
+        literal.append(source, last, source.length());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Supplier<String> bind(String className, String methodName) {
+        try {
+            Method method = Class.forName(className, false, Template.class.getClassLoader()).getMethod(methodName);
+            if (!Modifier.isStatic(method.getModifiers())) {
+                throw new NoSuchMethodException(className + "." + methodName + " is not static");
+            }
+            if (method.getReturnType() != String.class) {
+                throw new NoSuchMethodException(className + "." + methodName + " doesn't return String");
+            }
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle handle = lookup.unreflect(method);
+            CallSite site = LambdaMetafactory.metafactory(lookup, "get",
+                    MethodType.methodType(Supplier.class), MethodType.methodType(Object.class),
+                    handle, MethodType.methodType(String.class));
+            return (Supplier<String>) site.getTarget().invoke();
+        } catch (Throwable e) {
+            logger.error(TAG_CLASS, "Can't bind marker " + className + "." + methodName + "()", e);
+            return null;
+        }
+    }
+}
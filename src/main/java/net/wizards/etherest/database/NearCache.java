@@ -0,0 +1,97 @@
+package net.wizards.etherest.database;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded in-process cache in front of Redis. Entries are kept in access order and evicted least recently used
+ * first once the maximum size is reached; an entry older than the time to live is treated as a miss.
+ * A maximum size of zero disables the cache.
+ */
+public class NearCache<K, V> {
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Stats.CacheStats stats = new Stats.CacheStats();
+    private int maxSize;
+    private long ttlMillis;
+
+    public NearCache(int maxSize, long ttlMillis) {
+        resize(maxSize, ttlMillis);
+    }
+
+    public synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            stats.onMiss();
+            return null;
+        }
+        if (isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(key);
+            stats.onExpiration();
+            stats.onMiss();
+            return null;
+        }
+        stats.onHit();
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        if (maxSize <= 0) {
+            return;
+        }
+        entries.put(key, new Entry<>(value, System.currentTimeMillis()));
+        trim();
+    }
+
+    public synchronized void invalidate(K key) {
+        if (entries.remove(key) != null) {
+            stats.onInvalidation();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized void resize(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        trim();
+    }
+
+    public synchronized Stats.CacheStats getStats() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            if (isExpired(it.next(), now)) {
+                it.remove();
+                stats.onExpiration();
+            }
+        }
+        stats.setSize(entries.size(), maxSize);
+        return stats;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<K, Entry<V>>> it = entries.entrySet().iterator();
+        while (entries.size() > Math.max(0, maxSize) && it.hasNext()) {
+            it.next();
+            it.remove();
+            stats.onEviction();
+        }
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return ttlMillis > 0 && now - entry.created > ttlMillis;
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created;
+
+        Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
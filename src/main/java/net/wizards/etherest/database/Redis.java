@@ -1,21 +1,41 @@
 package net.wizards.etherest.database;
 
 import net.wizards.etherest.Config;
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Histogram;
+import net.wizards.etherest.metrics.Metrics;
+import net.wizards.etherest.trace.Tracer;
+import org.apache.commons.pool2.impl.GenericObjectPool;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.SafeEncoder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
 public class Redis {
-    private JedisPool pool;
+    private volatile TunablePool pool;
     private String hostname = "";
     private int port = -1;
+    private int timeout;
     private String password;
-    private Config config;
+    private volatile Config config;
 
     private static Redis instance;
 
@@ -23,9 +43,30 @@ public class Redis {
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Redis.class.getSimpleName());
     private static final Marker TAG_REDIS = MarkerManager.getMarker("REDIS");
 
+    private static final long SUBSCRIBE_RETRY_DELAY = 1000L;
+
+    private static final Command GET = new Command("get");
+    private static final Command SET = new Command("set");
+    private static final Command DEL = new Command("del");
+    private static final Command EXISTS = new Command("exists");
+    private static final Command PUBLISH = new Command("publish");
+    private static final Command PIPELINE = new Command("pipeline");
+    private static final Command SCAN = new Command("scan");
+    private static final Command HMGET = new Command("hmget");
+    private static final Command REPLACE = new Command("replace");
+
     private Redis() {
         logger.info(TAG_CLASS, "Starting Redis initialization");
         reconfig();
+        Config.addReloadListener(this::reconfig);
+        Metrics.get().gauge("redis_pool_active", () -> poolValue(GenericObjectPool::getNumActive));
+        Metrics.get().gauge("redis_pool_idle", () -> poolValue(GenericObjectPool::getNumIdle));
+        Metrics.get().gauge("redis_pool_waiters", () -> poolValue(GenericObjectPool::getNumWaiters));
+        Metrics.get().gauge("redis_pool_max_total", () -> poolValue(GenericObjectPool::getMaxTotal));
+        Metrics.get().counter("redis_pool_borrowed", () -> poolValue(GenericObjectPool::getBorrowedCount));
+        Metrics.get().counter("redis_pool_created", () -> poolValue(GenericObjectPool::getCreatedCount));
+        Metrics.get().counter("redis_pool_destroyed", () -> poolValue(GenericObjectPool::getDestroyedCount));
+        Metrics.get().gauge("redis_pool_mean_borrow_wait_millis", () -> poolValue(GenericObjectPool::getMeanBorrowWaitTimeMillis));
     }
 
     public static Redis getInstance() {
@@ -36,35 +77,40 @@ public class Redis {
     }
 
     private JedisPool getPool() {
-        if (pool == null) {
-            pool = new JedisPool(new GenericObjectPoolConfig(), hostname, port, 1800, password);
-
-            Jedis jedis = null;
-            try {
-                jedis = pool.getResource();
-            } catch (JedisConnectionException e) {
-                if (password != null && e.getCause().getMessage().equals("ERR Client sent AUTH, but no password is set")) {
-                    password = null;
-                    destroyPool();
-                    return getPool();
-                } else {
-                    throw e;
+        TunablePool current = pool;
+        if (current == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    pool = newPool(config);
+                    logger.info(TAG_CLASS, "Connection pool created");
                 }
-            } finally {
-                if (jedis != null) jedis.close();
+                current = pool;
             }
-            logger.info(TAG_CLASS, "Connection pool created");
         }
-
-        return pool;
+        return current;
     }
 
-    private void destroyPool() {
-        if (pool != null) {
-            pool.destroy();
-            pool = null;
-            logger.info(TAG_CLASS, "Connection pool destroyed");
+    /**
+     * Creates a pool for the current connection settings and checks it by borrowing a connection. Drops the
+     * password if the server has none set.
+     */
+    private TunablePool newPool(Config config) {
+        TunablePool created = new TunablePool(poolConfig(config), hostname, port, timeout, password);
+        Jedis jedis = null;
+        try {
+            jedis = created.getResource();
+        } catch (JedisConnectionException e) {
+            created.destroy();
+            if (password != null && e.getCause().getMessage().equals("ERR Client sent AUTH, but no password is set")) {
+                password = null;
+                return newPool(config);
+            } else {
+                throw e;
+            }
+        } finally {
+            if (jedis != null) jedis.close();
         }
+        return created;
     }
 
     public boolean testConnection() {
@@ -79,46 +125,229 @@ public class Redis {
     }
 
     public String get(String key) {
+        long start = System.nanoTime();
+        boolean completed = false;
         try (Jedis jedis = getPool().getResource()) {
             String result = jedis.get(ns(key));
             if (config.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, String.format("Get key %s data", ns(key)));
+                logger.debug(TAG_REDIS, "Get key {} data", ns(key));
             }
+            completed = true;
             return result;
+        } finally {
+            GET.done(start, completed);
         }
     }
 
     public void set(String key, String value, int expireSeconds) {
+        long start = System.nanoTime();
+        boolean completed = false;
         try (Jedis jedis = getPool().getResource()) {
-            jedis.set(ns(key), value);
             if (expireSeconds > 0) {
-                jedis.expire(ns(key), expireSeconds);
+                jedis.setex(ns(key), expireSeconds, value);
+            } else {
+                jedis.set(ns(key), value);
+            }
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} stored for {} seconds", ns(key), expireSeconds);
             }
+            completed = true;
+        } finally {
+            SET.done(start, completed);
+        }
+    }
+
+    /**
+     * Binary variant of {@link #get(String)}: returns the raw value bytes, for codecs that decode them directly.
+     */
+    public byte[] getBytes(String key) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            byte[] result = jedis.get(SafeEncoder.encode(ns(key)));
             if (config.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, String.format("Key %s stored for %d seconds", ns(key), expireSeconds));
+                logger.debug(TAG_REDIS, "Get key {} data", ns(key));
             }
+            completed = true;
+            return result;
+        } finally {
+            GET.done(start, completed);
+        }
+    }
+
+    public void set(String key, byte[] value, int expireSeconds) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            byte[] rawKey = SafeEncoder.encode(ns(key));
+            if (expireSeconds > 0) {
+                jedis.setex(rawKey, expireSeconds, value);
+            } else {
+                jedis.set(rawKey, value);
+            }
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} stored for {} seconds", ns(key), expireSeconds);
+            }
+            completed = true;
+        } finally {
+            SET.done(start, completed);
+        }
+    }
+
+    /**
+     * Reads the given fields of a hash; absent fields, or all of them if there is no hash, are {@code null}.
+     */
+    public List<String> hmget(String key, String... fields) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            List<String> result = jedis.hmget(ns(key), fields);
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Get hash {} fields {}", ns(key), fields);
+            }
+            completed = true;
+            return result;
+        } finally {
+            HMGET.done(start, completed);
+        }
+    }
+
+    /**
+     * Replaces the value of the key if it still is {@code expected}, keeping its time to live. Runs WATCH, GET
+     * and PTTL, then the write in MULTI/EXEC, so a concurrent write of the key makes it fail rather than be lost.
+     *
+     * @return whether the value was replaced
+     */
+    public boolean replace(String key, byte[] expected, byte[] value) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            byte[] rawKey = SafeEncoder.encode(ns(key));
+            jedis.watch(rawKey);
+            if (!Arrays.equals(jedis.get(rawKey), expected)) {
+                jedis.unwatch();
+                completed = true;
+                return false;
+            }
+            long ttl = jedis.pttl(rawKey);
+            Transaction transaction = jedis.multi();
+            if (ttl > 0) {
+                transaction.psetex(rawKey, ttl, value);
+            } else {
+                transaction.set(rawKey, value);
+            }
+            List<Object> result = transaction.exec();
+            boolean replaced = result != null && !result.isEmpty();
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} {}", ns(key), replaced ? "replaced" : "changed concurrently, not replaced");
+            }
+            completed = true;
+            return replaced;
+        } finally {
+            REPLACE.done(start, completed);
+        }
+    }
+
+    /**
+     * Runs one SCAN step over the keys matching the pattern, which gets the key namespace prefix.
+     *
+     * @param cursor {@code "0"} to start a scan, then the cursor of the previous result until it is {@code "0"}
+     */
+    public ScanResult<String> scan(String cursor, String pattern, int count) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            ScanResult<String> result = jedis.scan(cursor, new ScanParams().match(ns(pattern)).count(count));
+            completed = true;
+            return result;
+        } finally {
+            SCAN.done(start, completed);
         }
     }
 
     public void del(String key) {
+        long start = System.nanoTime();
+        boolean completed = false;
         try (Jedis jedis = getPool().getResource()) {
             jedis.del(ns(key));
             if (config.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, String.format("Key %s deleted", ns(key)));
+                logger.debug(TAG_REDIS, "Key {} deleted", ns(key));
             }
+            completed = true;
+        } finally {
+            DEL.done(start, completed);
         }
     }
 
     public boolean exists(String key) {
+        long start = System.nanoTime();
+        boolean completed = false;
         try (Jedis jedis = getPool().getResource()) {
             boolean result = jedis.exists(ns(key));
             if (config.isLogRedisDataFlow()) {
-                logger.debug(TAG_REDIS, String.format("Key %s %s", ns(key), result ? "exists" : "not exists"));
+                logger.debug(TAG_REDIS, "Key {} {}", ns(key), result ? "exists" : "not exists");
             }
+            completed = true;
             return result;
+        } finally {
+            EXISTS.done(start, completed);
         }
     }
 
+    public void publish(String channel, String message) {
+        long start = System.nanoTime();
+        boolean completed = false;
+        try (Jedis jedis = getPool().getResource()) {
+            jedis.publish(ns(channel), message);
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Message {} published to {}", message, ns(channel));
+            }
+            completed = true;
+        } finally {
+            PUBLISH.done(start, completed);
+        }
+    }
+
+    /**
+     * Delivers the messages of the channel to the listener on a dedicated daemon thread. The subscription holds
+     * one pooled connection and is re-established after a connection failure.
+     */
+    public void subscribe(String channel, Consumer<String> listener) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try (Jedis jedis = getPool().getResource()) {
+                    logger.info(TAG_REDIS, "Subscribed to " + ns(channel));
+                    jedis.subscribe(new JedisPubSub() {
+                        @Override
+                        public void onMessage(String ch, String message) {
+                            if (config.isLogRedisDataFlow()) {
+                                logger.debug(TAG_REDIS, "Message {} received from {}", message, ch);
+                            }
+                            listener.accept(message);
+                        }
+                    }, ns(channel));
+                } catch (Exception e) {
+                    logger.warn(TAG_REDIS, "Subscription to " + ns(channel) + " lost, re-subscribing", e);
+                }
+                try {
+                    Thread.sleep(SUBSCRIBE_RETRY_DELAY);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, String.format("redis_sub[%s]", channel));
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Opens a pipeline on a pooled connection. Commands are queued until {@link Batch#flush()}; the connection
+     * is returned to the pool on {@link Batch#close()}.
+     */
+    public Batch batch() {
+        return new Batch(getPool().getResource());
+    }
+
     private String ns(String key) {
         if (key.startsWith("etherest:")) {
             return key;
@@ -126,26 +355,247 @@ public class Redis {
         return "etherest:" + key;
     }
 
-    private void reconfig() {
-        config = Config.get();
-        String hostnameTmp = config.getRedisHost();
-        int portTmp = config.getRedisPort();
-        String passwordTmp = config.getRedisPassword();
+    public Stats.RedisPoolStats getPoolStats() {
+        TunablePool current = pool;
+        return current == null ? null : Stats.RedisPoolStats.of(current.internal());
+    }
+
+    private long poolValue(ToLongFunction<GenericObjectPool<Jedis>> value) {
+        TunablePool current = pool;
+        return current == null ? 0 : value.applyAsLong(current.internal());
+    }
+
+    private static GenericObjectPoolConfig poolConfig(Config config) {
+        GenericObjectPoolConfig poolConfig = new GenericObjectPoolConfig();
+        poolConfig.setMaxTotal(config.getRedisPoolMaxTotal());
+        poolConfig.setMaxIdle(config.getRedisPoolMaxIdle());
+        poolConfig.setMinIdle(config.getRedisPoolMinIdle());
+        poolConfig.setMaxWaitMillis(config.getRedisPoolMaxWait());
+        poolConfig.setTestOnBorrow(config.isRedisPoolTestOnBorrow());
+        poolConfig.setTestWhileIdle(config.isRedisPoolTestWhileIdle());
+        poolConfig.setTimeBetweenEvictionRunsMillis(config.getRedisPoolEvictionInterval());
+        poolConfig.setMinEvictableIdleTimeMillis(config.getRedisPoolMinEvictableIdleTime());
+        return poolConfig;
+    }
+
+    /**
+     * Applies the current configuration. Pool limits are changed in place; a new host, port or timeout gets a
+     * new pool that replaces the old one only after it connected, so in-flight commands finish on the old pool
+     * and a bad address leaves the old one serving.
+     */
+    private synchronized void reconfig() {
+        Config next = Config.get();
+        String hostnameTmp = next.getRedisHost();
+        int portTmp = next.getRedisPort();
+        int timeoutTmp = next.getRedisTimeout();
+        String passwordTmp = next.getRedisPassword();
         if (port != -1) {
-            if (!hostname.equals(hostnameTmp) || port != portTmp) {
-                destroyPool();
+            if (!hostname.equals(hostnameTmp) || port != portTmp || timeout != timeoutTmp
+                    || !Objects.equals(password, passwordTmp)) {
+                String hostnameOld = hostname;
+                int portOld = port;
+                int timeoutOld = timeout;
+                String passwordOld = password;
                 hostname = hostnameTmp;
                 port = portTmp;
+                timeout = timeoutTmp;
                 password = passwordTmp;
-                pool = getPool();
+                TunablePool created;
+                try {
+                    created = newPool(next);
+                } catch (RuntimeException e) {
+                    hostname = hostnameOld;
+                    port = portOld;
+                    timeout = timeoutOld;
+                    password = passwordOld;
+                    logger.error(TAG_CLASS, "Can't connect to " + hostnameTmp + ":" + portTmp
+                            + ", keeping the current connection", e);
+                    return;
+                }
+                TunablePool old = pool;
+                pool = created;
+                config = next;
+                if (old != null) {
+                    old.close();
+                }
                 logger.info(TAG_CLASS, "Redis connection re-created");
+            } else {
+                config = next;
+                TunablePool current = pool;
+                if (current != null) {
+                    current.setConfig(poolConfig(next));
+                    logger.info(TAG_CLASS, "Connection pool settings applied");
+                }
             }
         } else {
             hostname = hostnameTmp;
             port = portTmp;
+            timeout = timeoutTmp;
             password = passwordTmp;
-            pool = getPool();
+            config = next;
+            getPool();
             logger.info(TAG_CLASS, "Redis connection created");
         }
     }
+
+    public final class Batch implements AutoCloseable {
+        private final Jedis jedis;
+        private final Pipeline pipeline;
+        private boolean inMulti;
+
+        private Batch(Jedis jedis) {
+            this.jedis = jedis;
+            this.pipeline = jedis.pipelined();
+        }
+
+        public Response<String> get(String key) {
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Get key {} data (batched)", ns(key));
+            }
+            return pipeline.get(ns(key));
+        }
+
+        public void set(String key, String value, int expireSeconds) {
+            if (expireSeconds > 0) {
+                pipeline.setex(ns(key), expireSeconds, value);
+            } else {
+                pipeline.set(ns(key), value);
+            }
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} stored for {} seconds (batched)", ns(key), expireSeconds);
+            }
+        }
+
+        public Response<byte[]> getBytes(String key) {
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Get key {} data (batched)", ns(key));
+            }
+            return pipeline.get(SafeEncoder.encode(ns(key)));
+        }
+
+        public void set(String key, byte[] value, int expireSeconds) {
+            byte[] rawKey = SafeEncoder.encode(ns(key));
+            if (expireSeconds > 0) {
+                pipeline.setex(rawKey, expireSeconds, value);
+            } else {
+                pipeline.set(rawKey, value);
+            }
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} stored for {} seconds (batched)", ns(key), expireSeconds);
+            }
+        }
+
+        public Response<Boolean> exists(String key) {
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Check key {} exists (batched)", ns(key));
+            }
+            return pipeline.exists(ns(key));
+        }
+
+        public Response<List<String>> hmget(String key, String... fields) {
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Get hash {} fields {} (batched)", ns(key), fields);
+            }
+            return pipeline.hmget(ns(key), fields);
+        }
+
+        /**
+         * Sets the fields of a hash, leaving its other fields as they are, and renews its time to live.
+         */
+        public void hset(String key, Map<String, String> fields, int expireSeconds) {
+            if (!fields.isEmpty()) {
+                pipeline.hmset(ns(key), fields);
+            }
+            if (expireSeconds > 0) {
+                pipeline.expire(ns(key), expireSeconds);
+            }
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Hash {} fields {} stored for {} seconds (batched)", ns(key), fields.keySet(), expireSeconds);
+            }
+        }
+
+        public void hdel(String key, String... fields) {
+            pipeline.hdel(ns(key), fields);
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Hash {} fields {} deleted (batched)", ns(key), fields);
+            }
+        }
+
+        public void del(String key) {
+            pipeline.del(ns(key));
+            if (config.isLogRedisDataFlow()) {
+                logger.debug(TAG_REDIS, "Key {} deleted (batched)", ns(key));
+            }
+        }
+
+        /**
+         * Makes the commands queued from now on until the next flush execute atomically in MULTI/EXEC.
+         */
+        public void multi() {
+            if (!inMulti) {
+                pipeline.multi();
+                inMulti = true;
+            }
+        }
+
+        /**
+         * Sends the queued commands in one round trip, timed as a single {@code pipeline} command.
+         */
+        public void flush() {
+            long start = System.nanoTime();
+            boolean completed = false;
+            try {
+                if (inMulti) {
+                    pipeline.exec();
+                    inMulti = false;
+                }
+                pipeline.sync();
+                completed = true;
+            } finally {
+                PIPELINE.done(start, completed);
+            }
+        }
+
+        @Override
+        public void close() {
+            jedis.close();
+        }
+    }
+
+    private static final class Command {
+        private final Histogram latency;
+        private final Counter errors;
+        private final String span;
+
+        Command(String name) {
+            latency = Metrics.get().histogram("redis_command_duration", "command", name);
+            errors = Metrics.get().counter("redis_command_errors", "command", name);
+            span = "redis." + name;
+        }
+
+        void done(long start, boolean completed) {
+            if (!completed) {
+                errors.inc();
+            }
+            latency.recordSince(start);
+            Tracer.record(span, start);
+        }
+    }
+
+    /**
+     * Gives access to the underlying commons-pool instance, which accepts new settings on a live pool.
+     */
+    private static class TunablePool extends JedisPool {
+        TunablePool(GenericObjectPoolConfig poolConfig, String host, int port, int timeout, String password) {
+            super(poolConfig, host, port, timeout, password);
+        }
+
+        void setConfig(GenericObjectPoolConfig poolConfig) {
+            internalPool.setConfig(poolConfig);
+        }
+
+        GenericObjectPool<Jedis> internal() {
+            return internalPool;
+        }
+    }
 }
@@ -1,52 +1,19 @@
 package net.wizards.etherest.database;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.pool2.impl.GenericObjectPool;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Snapshot and counter holders of the components reported by {@code /rest/stats}. Service-wide counters and
+ * latencies live in {@link net.wizards.etherest.metrics.Metrics}.
+ */
 public class Stats {
-    private Map<Param, AtomicInteger> stat;
-
-    private static Stats instance;
-
     private Stats() {
-        stat = new ConcurrentHashMap<>();
-        for (Param param : Param.values()) {
-            stat.put(param, new AtomicInteger(0));
-        }
-    }
-
-    public AtomicInteger value(Param param) {
-        return stat.get(param);
-    }
-
-    private enum Param {
-        GET_SUBMIT_CNT("Total number of submit requests from Alaris switch"),
-        GET_SUBMIT_OK_CNT("Number of successful submit requests from Alaris switch"),
-        GET_DLR_CNT("Total number of delivery requests from Alaris switch"),
-        GET_DLR_OK_CNT("Number of successful delivery requests from Alaris switch"),
-        POST_SUBMIT_CNT("Total number of sendSMS SOAP requests to Parlay X service"),
-        POST_SUBMIT_OK_CNT("Number of successful sendSMS SOAP requests to Parlay X service"),
-        POST_NOTIF_CNT("Total number of SMS delivery notification SOAP requests from Parlay X service");
-
-        private String descr;
-
-        Param(String descr) {
-            this.descr = descr;
-        }
-
-        public String getDescr() {
-            return descr;
-        }
-    }
-
-    public synchronized static Stats getInstance() {
-        if (instance == null) {
-            instance = new Stats();
-        }
-        return instance;
+        throw new RuntimeException();
     }
 
     public static class PoolExecutorStats {
@@ -81,4 +48,291 @@ public class Stats {
             return new PoolExecutorStats(service);
         }
     }
+
+    public static class ConnectionStats {
+        // the total number of accepted client connections
+        private final AtomicLong accepted = new AtomicLong();
+        // the number of currently open client connections
+        private final AtomicLong open = new AtomicLong();
+        // the total number of requests served
+        private final AtomicLong requests = new AtomicLong();
+        // the number of requests served over an already used (kept alive) connection
+        private final AtomicLong reused = new AtomicLong();
+        // the number of connections closed after the keep-alive idle timeout
+        private final AtomicLong idleTimeouts = new AtomicLong();
+        // the number of connections closed after reaching the per-connection request limit
+        private final AtomicLong requestLimitCloses = new AtomicLong();
+
+        public void onAccept() {
+            accepted.incrementAndGet();
+            open.incrementAndGet();
+        }
+
+        public void onClose() {
+            open.decrementAndGet();
+        }
+
+        public void onRequest(boolean reusedConnection) {
+            requests.incrementAndGet();
+            if (reusedConnection) {
+                reused.incrementAndGet();
+            }
+        }
+
+        public void onIdleTimeout() {
+            idleTimeouts.incrementAndGet();
+        }
+
+        public void onRequestLimit() {
+            requestLimitCloses.incrementAndGet();
+        }
+    }
+
+    public static class CacheStats {
+        // the number of cached entries
+        private volatile int size;
+        // the maximum allowed number of cached entries
+        private volatile int maxSize;
+        // the number of lookups served from the cache
+        private final AtomicLong hits = new AtomicLong();
+        // the number of lookups not found in the cache or found expired
+        private final AtomicLong misses = new AtomicLong();
+        // the number of entries removed to keep the cache within its maximum size
+        private final AtomicLong evictions = new AtomicLong();
+        // the number of entries removed after their time to live elapsed
+        private final AtomicLong expirations = new AtomicLong();
+        // the number of entries removed on invalidation from another instance
+        private final AtomicLong invalidations = new AtomicLong();
+
+        public void onHit() {
+            hits.incrementAndGet();
+        }
+
+        public void onMiss() {
+            misses.incrementAndGet();
+        }
+
+        public void onEviction() {
+            evictions.incrementAndGet();
+        }
+
+        public void onExpiration() {
+            expirations.incrementAndGet();
+        }
+
+        public void onInvalidation() {
+            invalidations.incrementAndGet();
+        }
+
+        public void setSize(int size, int maxSize) {
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+    }
+
+    public static class RedisPoolStats {
+        // the maximum allowed number of connections
+        private int maxTotal;
+        // the number of connections currently borrowed from the pool
+        private int active;
+        // the number of idle connections in the pool
+        private int idle;
+        // the approximate number of threads blocked waiting for a connection
+        private int waiters;
+        // the mean time spent waiting for a connection over the recent borrows, ms
+        private long meanBorrowWaitMillis;
+        // the maximum time spent waiting for a connection, ms
+        private long maxBorrowWaitMillis;
+        // the total number of connections borrowed
+        private long borrowed;
+        // the total number of connections created
+        private long created;
+        // the total number of connections destroyed
+        private long destroyed;
+
+        private RedisPoolStats(GenericObjectPool<?> pool) {
+            maxTotal = pool.getMaxTotal();
+            active = pool.getNumActive();
+            idle = pool.getNumIdle();
+            waiters = pool.getNumWaiters();
+            meanBorrowWaitMillis = pool.getMeanBorrowWaitTimeMillis();
+            maxBorrowWaitMillis = pool.getMaxBorrowWaitTimeMillis();
+            borrowed = pool.getBorrowedCount();
+            created = pool.getCreatedCount();
+            destroyed = pool.getDestroyedCount();
+        }
+
+        public static RedisPoolStats of(GenericObjectPool<?> pool) {
+            return new RedisPoolStats(pool);
+        }
+    }
+
+    public static class SenderStats {
+        // the number of requests waiting in the outbound queue, including those in flight
+        private volatile int queued;
+        // the number of requests currently being sent
+        private volatile int inFlight;
+        // the total number of requests accepted into the queue
+        private final AtomicLong enqueued = new AtomicLong();
+        // the total number of requests delivered
+        private final AtomicLong sent = new AtomicLong();
+        // the total number of retries after 429, 5xx or I/O errors
+        private final AtomicLong retried = new AtomicLong();
+        // the number of requests given up after an error
+        private final AtomicLong failed = new AtomicLong();
+        // the number of requests dropped because the queue was full
+        private final AtomicLong dropped = new AtomicLong();
+
+        public void onQueued() {
+            enqueued.incrementAndGet();
+        }
+
+        public void onSent() {
+            sent.incrementAndGet();
+        }
+
+        public void onRetried() {
+            retried.incrementAndGet();
+        }
+
+        public void onFailed() {
+            failed.incrementAndGet();
+        }
+
+        public void onDropped() {
+            dropped.incrementAndGet();
+        }
+
+        public void setQueued(int queued, int inFlight) {
+            this.queued = queued;
+            this.inFlight = inFlight;
+        }
+    }
+
+    public static class MigrationStats {
+        // whether a migration pass is running
+        private volatile boolean running;
+        // the number of completed passes over the keys
+        private final AtomicLong passes = new AtomicLong();
+        // the number of client and claim keys examined
+        private final AtomicLong scanned = new AtomicLong();
+        // the number of records rewritten in the binary format
+        private final AtomicLong migrated = new AtomicLong();
+        // the number of records found in the binary format already
+        private final AtomicLong alreadyBinary = new AtomicLong();
+        // the number of records left as they were because they changed meanwhile or couldn't be decoded
+        private final AtomicLong skipped = new AtomicLong();
+        // the total size of the migrated records before, bytes
+        private final AtomicLong jsonBytes = new AtomicLong();
+        // the total size of the migrated records after, bytes
+        private final AtomicLong binaryBytes = new AtomicLong();
+        // the mean value size saved per migrated key, bytes
+        private volatile long savedBytesPerKey;
+        // the share of the value size saved, %
+        private volatile long savedPercent;
+
+        public void setRunning(boolean running) {
+            this.running = running;
+            if (!running) {
+                passes.incrementAndGet();
+            }
+        }
+
+        public void onScanned() {
+            scanned.incrementAndGet();
+        }
+
+        public void onAlreadyBinary() {
+            alreadyBinary.incrementAndGet();
+        }
+
+        public void onSkipped() {
+            skipped.incrementAndGet();
+        }
+
+        public void onMigrated(int jsonSize, int binarySize) {
+            long count = migrated.incrementAndGet();
+            long before = jsonBytes.addAndGet(jsonSize);
+            long after = binaryBytes.addAndGet(binarySize);
+            savedBytesPerKey = (before - after) / count;
+            savedPercent = before == 0 ? 0 : (before - after) * 100 / before;
+        }
+
+        public long getMigrated() {
+            return migrated.get();
+        }
+
+        public long getSavedBytesPerKey() {
+            return savedBytesPerKey;
+        }
+
+        public long getSavedPercent() {
+            return savedPercent;
+        }
+    }
+
+    public static class RateStats {
+        // the current rate, null if none was fetched yet
+        private volatile String rate;
+        // the age of the current rate, s
+        private volatile long ageSeconds;
+        // the number of reads served from memory
+        private final AtomicLong hits = new AtomicLong();
+        // the number of reads that found the rate missing or expired and waited for a fetch
+        private final AtomicLong misses = new AtomicLong();
+        // the number of reads that joined a fetch already in flight instead of starting one
+        private final AtomicLong coalesced = new AtomicLong();
+        // the number of reads served an expired rate because the upstream failed
+        private final AtomicLong staleServed = new AtomicLong();
+        // the number of successful upstream fetches
+        private final AtomicLong fetches = new AtomicLong();
+        // the number of failed upstream fetches
+        private final AtomicLong failures = new AtomicLong();
+        // the duration of the last fetch, successful or not, ms
+        private volatile long lastFetchMillis;
+        // the mean duration of the fetches, ms
+        private volatile long meanFetchMillis;
+        // the maximum duration of a fetch, ms
+        private final AtomicLong maxFetchMillis = new AtomicLong();
+        private final transient AtomicLong totalFetchNanos = new AtomicLong();
+
+        public void onHit() {
+            hits.incrementAndGet();
+        }
+
+        public void onMiss() {
+            misses.incrementAndGet();
+        }
+
+        public void onCoalesced() {
+            coalesced.incrementAndGet();
+        }
+
+        public void onStaleServed() {
+            staleServed.incrementAndGet();
+        }
+
+        public void onFetch(long nanos) {
+            fetches.incrementAndGet();
+            onFetchTime(nanos);
+        }
+
+        public void onFailure(long nanos) {
+            failures.incrementAndGet();
+            onFetchTime(nanos);
+        }
+
+        public void setRate(String rate, long ageSeconds) {
+            this.rate = rate;
+            this.ageSeconds = ageSeconds;
+        }
+
+        private void onFetchTime(long nanos) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            lastFetchMillis = millis;
+            maxFetchMillis.accumulateAndGet(millis, Math::max);
+            long total = totalFetchNanos.addAndGet(nanos);
+            meanFetchMillis = TimeUnit.NANOSECONDS.toMillis(total / Math.max(1, fetches.get() + failures.get()));
+        }
+    }
 }
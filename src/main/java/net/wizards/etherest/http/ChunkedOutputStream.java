@@ -0,0 +1,99 @@
+package net.wizards.etherest.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP/1.1 chunked transfer coding over the connection stream. Output is buffered and every full buffer is sent
+ * as one chunk; {@link #finish()} sends the rest and the last chunk, leaving the connection open.
+ * <p>
+ * The chunk framing is laid out around the data in the buffer, so every chunk goes out in a single write; the
+ * response head is sent together with the first one.
+ */
+class ChunkedOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int dataStart;
+    private byte[] head;
+    private int count;
+
+    // hex size of up to 8 digits and CRLF
+    private static final int SIZE_LINE = 10;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    ChunkedOutputStream(OutputStream out, byte[] head, int chunkSize) {
+        this.out = out;
+        this.head = head;
+        this.dataStart = head.length + SIZE_LINE;
+        this.buffer = new byte[dataStart + chunkSize + 2 + LAST_CHUNK.length];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == capacity()) {
+            writeChunk(false);
+        }
+        buffer[dataStart + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == capacity()) {
+                writeChunk(false);
+            }
+            int n = Math.min(len, capacity() - count);
+            System.arraycopy(b, off, buffer, dataStart + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            writeChunk(false);
+        }
+        out.flush();
+    }
+
+    void finish() throws IOException {
+        writeChunk(true);
+        out.flush();
+    }
+
+    private int capacity() {
+        return buffer.length - dataStart - 2 - LAST_CHUNK.length;
+    }
+
+    private void writeChunk(boolean last) throws IOException {
+        int start = dataStart;
+        int end = dataStart;
+        if (count > 0) {
+            buffer[--start] = '\n';
+            buffer[--start] = '\r';
+            int size = count;
+            do {
+                buffer[--start] = HEX[size & 0xf];
+                size >>>= 4;
+            } while (size > 0);
+            end += count;
+            buffer[end++] = '\r';
+            buffer[end++] = '\n';
+        }
+        if (last) {
+            System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        if (head != null) {
+            start -= head.length;
+            System.arraycopy(head, 0, buffer, start, head.length);
+            head = null;
+        }
+        out.write(buffer, start, end - start);
+        count = 0;
+    }
+}
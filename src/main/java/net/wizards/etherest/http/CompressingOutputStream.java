@@ -0,0 +1,122 @@
+package net.wizards.etherest.http;
+
+import net.wizards.etherest.metrics.Counter;
+import net.wizards.etherest.metrics.Histogram;
+import net.wizards.etherest.metrics.Metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses a response body in the negotiated coding with a pooled {@link Deflater}, adding the gzip header and
+ * trailer itself since {@link java.util.zip.GZIPOutputStream} can't take a deflater. {@link #finish()} completes
+ * the compressed data, returns the deflater and records the sizes and the time spent deflating; it doesn't close
+ * the underlying stream.
+ */
+class CompressingOutputStream extends DeflaterOutputStream {
+    private final ContentCoding coding;
+    private final CRC32 crc;
+    private long deflateNanos;
+    private boolean finished;
+
+    private static final Counter[] inputBytes = new Counter[ContentCoding.values().length];
+    private static final Counter[] outputBytes = new Counter[ContentCoding.values().length];
+    private static final Histogram[] deflateTime = new Histogram[ContentCoding.values().length];
+
+    static {
+        Metrics metrics = Metrics.get();
+        for (ContentCoding coding : ContentCoding.values()) {
+            inputBytes[coding.ordinal()] = metrics.counter("rest_compression_input_bytes", "coding", coding.token());
+            outputBytes[coding.ordinal()] = metrics.counter("rest_compression_output_bytes", "coding", coding.token());
+            deflateTime[coding.ordinal()] = metrics.histogram("rest_compression_duration", "coding", coding.token());
+        }
+    }
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    CompressingOutputStream(OutputStream out, ContentCoding coding) throws IOException {
+        super(out, Deflaters.acquire(coding), BUFFER_SIZE);
+        this.coding = coding;
+        if (coding == ContentCoding.GZIP) {
+            crc = new CRC32();
+            out.write(GZIP_HEADER);
+        } else {
+            crc = null;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        super.write(b, off, len);
+        if (crc != null) {
+            crc.update(b, off, len);
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    protected void deflate() throws IOException {
+        long start = System.nanoTime();
+        int len = def.deflate(buf, 0, buf.length);
+        deflateNanos += System.nanoTime() - start;
+        if (len > 0) {
+            out.write(buf, 0, len);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            super.finish();
+            long compressed = def.getBytesWritten();
+            if (crc != null) {
+                writeTrailer();
+                compressed += GZIP_HEADER.length + GZIP_TRAILER_SIZE;
+            }
+            inputBytes[coding.ordinal()].add(def.getBytesRead());
+            outputBytes[coding.ordinal()].add(compressed);
+            deflateTime[coding.ordinal()].record(deflateNanos);
+        } finally {
+            Deflaters.release(coding, def);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /**
+     * Gives the deflater back without completing the data, after the body failed.
+     */
+    void discard() {
+        if (!finished) {
+            finished = true;
+            Deflaters.release(coding, def);
+        }
+    }
+
+    private void writeTrailer() throws IOException {
+        long value = crc.getValue();
+        long size = def.getBytesRead();
+        byte[] trailer = new byte[GZIP_TRAILER_SIZE];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (value >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+        out.write(trailer);
+    }
+}
@@ -0,0 +1,78 @@
+package net.wizards.etherest.http;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response content codings the service can apply, negotiated from the request {@code Accept-Encoding}.
+ * {@code deflate} is the zlib format, as HTTP defines it; {@code gzip} wraps raw deflate data.
+ */
+public enum ContentCoding {
+    GZIP("gzip", true),
+    DEFLATE("deflate", false);
+
+    private final String token;
+    private final boolean nowrap;
+    private final byte[] headers;
+
+    ContentCoding(String token, boolean nowrap) {
+        this.token = token;
+        this.nowrap = nowrap;
+        this.headers = ("Content-Encoding: " + token + "\r\nVary: Accept-Encoding\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public String token() {
+        return token;
+    }
+
+    boolean isNowrap() {
+        return nowrap;
+    }
+
+    /**
+     * Pre-encoded {@code Content-Encoding} and {@code Vary} headers of a response in this coding.
+     */
+    byte[] encodedHeaders() {
+        return headers;
+    }
+
+    /**
+     * Picks the coding the client prefers by q-value, gzip on a tie; {@code null} if it accepts neither.
+     */
+    public static ContentCoding negotiate(String acceptEncoding) {
+        if (acceptEncoding == null || acceptEncoding.isEmpty()) {
+            return null;
+        }
+        double gzip = -1;
+        double deflate = -1;
+        double any = 0;
+        for (String element : acceptEncoding.split(",")) {
+            String[] parts = element.split(";");
+            String coding = parts[0].trim();
+            double q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equalsIgnoreCase("gzip") || coding.equalsIgnoreCase("x-gzip")) {
+                gzip = q;
+            } else if (coding.equalsIgnoreCase("deflate")) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                any = q;
+            }
+        }
+        // codings not listed get the q-value of "*", if any
+        gzip = gzip < 0 ? any : gzip;
+        deflate = deflate < 0 ? any : deflate;
+        if (gzip <= 0 && deflate <= 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+}
@@ -0,0 +1,65 @@
+package net.wizards.etherest.http;
+
+import net.wizards.etherest.Config;
+import net.wizards.etherest.util.Misc;
+import net.wizards.etherest.util.Workers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable {@link Deflater}s. A platform worker thread keeps one deflater per coding for its lifetime; virtual
+ * threads, which live for a single request, borrow from a small shared pool instead, so the native zlib state
+ * isn't allocated per request either way.
+ */
+final class Deflaters {
+    private static final ThreadLocal<Deflater[]> perThread =
+            ThreadLocal.withInitial(() -> new Deflater[ContentCoding.values().length]);
+    @SuppressWarnings("unchecked")
+    private static final BlockingQueue<Deflater>[] shared = new BlockingQueue[ContentCoding.values().length];
+
+    private static final int SHARED_POOL_SIZE = 64;
+
+    static {
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new ArrayBlockingQueue<>(SHARED_POOL_SIZE);
+        }
+    }
+
+    private Deflaters() {
+        throw new RuntimeException();
+    }
+
+    static Deflater acquire(ContentCoding coding) {
+        Deflater deflater;
+        if (Workers.isVirtual(Thread.currentThread())) {
+            deflater = shared[coding.ordinal()].poll();
+        } else {
+            Deflater[] deflaters = perThread.get();
+            deflater = deflaters[coding.ordinal()];
+            deflaters[coding.ordinal()] = null;
+        }
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, coding.isNowrap());
+        }
+        deflater.setLevel(Misc.nvl(Config.get().getRestCompressionLevel(), Deflater.DEFAULT_COMPRESSION));
+        return deflater;
+    }
+
+    static void release(ContentCoding coding, Deflater deflater) {
+        deflater.reset();
+        if (Workers.isVirtual(Thread.currentThread())) {
+            if (!shared[coding.ordinal()].offer(deflater)) {
+                deflater.end();
+            }
+        } else {
+            Deflater[] deflaters = perThread.get();
+            if (deflaters[coding.ordinal()] == null) {
+                deflaters[coding.ordinal()] = deflater;
+            } else {
+                deflater.end();
+            }
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package net.wizards.etherest.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental HTTP/1.x request reader working directly on bytes. The parser owns the connection input buffer,
+ * remembers how far it has scanned between reads and hands out {@link RawRequest} views over the buffered bytes.
+ * A view stays valid until {@link #release()} is called.
+ */
+public final class HttpParser {
+    public static final int READ_BUFFER_SIZE = 4096;
+
+    private final int maxHeaderSize;
+    private final int maxBodySize;
+
+    private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private RawRequest current;
+    private int scan;
+    private int lineStart;
+    private int headerEnd = -1;
+    private int contentLength = -1;
+    private RawRequest completed;
+
+    public HttpParser(int maxHeaderSize, int maxBodySize) {
+        this.maxHeaderSize = maxHeaderSize;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /**
+     * Returns the input buffer in write mode with room for at least one more byte.
+     */
+    public ByteBuffer buffer() {
+        if (!buffer.hasRemaining()) {
+            ByteBuffer grown = ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            buffer = grown.put(buffer);
+        }
+        return buffer;
+    }
+
+    public int fill(InputStream in) throws IOException {
+        ByteBuffer buf = buffer();
+        int read = in.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+        if (read > 0) {
+            buf.position(buf.position() + read);
+        }
+        return read;
+    }
+
+    /**
+     * Returns the next complete request or {@code null} if more input is needed. The same request is returned
+     * until it is released.
+     */
+    public RawRequest next() {
+        if (completed != null) {
+            return completed;
+        }
+        int end = buffer.position();
+        if (headerEnd == -1) {
+            scanHeaders(end);
+            if (headerEnd == -1) {
+                return null;
+            }
+        }
+        int bodyLength = Math.max(contentLength, 0);
+        if (end - headerEnd < bodyLength) {
+            return null;
+        }
+        current.setBody(buffer, headerEnd, bodyLength);
+        completed = current;
+        return completed;
+    }
+
+    /**
+     * Discards the bytes of the last completed request, keeping any pipelined bytes that follow it.
+     */
+    public void release() {
+        if (completed == null) {
+            return;
+        }
+        int consumed = completed.length();
+        int remaining = buffer.position() - consumed;
+        byte[] array = buffer.array();
+        System.arraycopy(array, consumed, array, 0, remaining);
+        buffer.position(remaining);
+        completed = null;
+        current = null;
+        scan = 0;
+        lineStart = 0;
+        headerEnd = -1;
+        contentLength = -1;
+    }
+
+    private void scanHeaders(int end) {
+        for (; scan < end; scan++) {
+            if (buffer.get(scan) != '\n') {
+                continue;
+            }
+            int lineEnd = scan > lineStart && buffer.get(scan - 1) == '\r' ? scan - 1 : scan;
+            if (current == null) {
+                if (lineEnd > lineStart) {
+                    current = requestLine(lineStart, lineEnd);
+                }
+            } else if (lineEnd == lineStart) {
+                headerEnd = scan + 1;
+                break;
+            } else {
+                headerLine(lineStart, lineEnd);
+            }
+            lineStart = scan + 1;
+        }
+        if ((headerEnd == -1 ? end : headerEnd) > maxHeaderSize) {
+            throw new ParseException(Status.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header section exceeds " + maxHeaderSize + " bytes");
+        }
+    }
+
+    private RawRequest requestLine(int start, int end) {
+        int sp1 = indexOf(' ', start, end);
+        int sp2 = sp1 == -1 ? -1 : indexOf(' ', sp1 + 1, end);
+        if (sp1 == -1) {
+            throw new ParseException(Status.BAD_REQUEST, "Malformed HTTP request line");
+        }
+        return sp2 == -1
+                ? new RawRequest(start, sp1, sp1 + 1, end, end, end)
+                : new RawRequest(start, sp1, sp1 + 1, sp2, sp2 + 1, end);
+    }
+
+    private void headerLine(int start, int end) {
+        int colon = indexOf(':', start, end);
+        if (colon <= start) {
+            return;
+        }
+        int valueStart = colon + 1;
+        while (valueStart < end && (buffer.get(valueStart) == ' ' || buffer.get(valueStart) == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && (buffer.get(valueEnd - 1) == ' ' || buffer.get(valueEnd - 1) == '\t')) {
+            valueEnd--;
+        }
+        current.addHeader(start, colon, valueStart, valueEnd);
+        if (RawRequest.equalsIgnoreCase(buffer, start, colon, RawRequest.CONTENT_LENGTH)) {
+            int length = contentLength(valueStart, valueEnd);
+            if (contentLength != -1 && contentLength != length) {
+                throw new ParseException(Status.BAD_REQUEST, "Conflicting Content-Length headers");
+            }
+            contentLength = length;
+        } else if (RawRequest.equalsIgnoreCase(buffer, start, colon, RawRequest.TRANSFER_ENCODING)) {
+            // bodies are only delimited by Content-Length, anything else would desync the connection
+            throw new ParseException(Status.BAD_REQUEST, "Transfer-Encoding is not supported");
+        }
+    }
+
+    private int contentLength(int start, int end) {
+        if (start == end) {
+            throw new ParseException(Status.BAD_REQUEST, "Empty Content-Length");
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < '0' || b > '9') {
+                throw new ParseException(Status.BAD_REQUEST, "Malformed Content-Length");
+            }
+            length = length * 10 + (b - '0');
+            if (length > maxBodySize) {
+                throw new ParseException(Status.PAYLOAD_TOO_LARGE, "Request body exceeds " + maxBodySize + " bytes");
+            }
+        }
+        return (int) length;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static class ParseException extends RuntimeException {
+        private final Status status;
+
+        ParseException(Status status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package net.wizards.etherest.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Undecoded view of a request held in an {@link HttpParser} buffer: request line parts, headers and body are
+ * kept as offsets into the buffer and decoded only on demand.
+ */
+public final class RawRequest {
+    static final byte[] CONTENT_LENGTH = ascii("content-length");
+    static final byte[] TRANSFER_ENCODING = ascii("transfer-encoding");
+
+    private static final byte[] GET = ascii("GET");
+    private static final byte[] POST = ascii("POST");
+    private static final byte[] PUT = ascii("PUT");
+    private static final byte[] DELETE = ascii("DELETE");
+    private static final byte[] HTTP_1_1 = ascii("http/1.1");
+
+    private final int methodStart;
+    private final int methodEnd;
+    private final int targetStart;
+    private final int targetEnd;
+    private final int versionStart;
+    private final int versionEnd;
+    // nameStart, nameEnd, valueStart, valueEnd per header
+    private int[] headers = new int[32];
+    private int headerCount;
+    private ByteBuffer buffer;
+    private int bodyStart;
+    private int bodyLength;
+
+    RawRequest(int methodStart, int methodEnd, int targetStart, int targetEnd, int versionStart, int versionEnd) {
+        this.methodStart = methodStart;
+        this.methodEnd = methodEnd;
+        this.targetStart = targetStart;
+        this.targetEnd = targetEnd;
+        this.versionStart = versionStart;
+        this.versionEnd = versionEnd;
+    }
+
+    void addHeader(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if (headerCount * 4 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = headerCount++ * 4;
+        headers[i] = nameStart;
+        headers[i + 1] = nameEnd;
+        headers[i + 2] = valueStart;
+        headers[i + 3] = valueEnd;
+    }
+
+    void setBody(ByteBuffer buffer, int bodyStart, int bodyLength) {
+        this.buffer = buffer;
+        this.bodyStart = bodyStart;
+        this.bodyLength = bodyLength;
+    }
+
+    int length() {
+        return bodyStart + bodyLength;
+    }
+
+    public Request.Method method() {
+        if (equals(buffer, methodStart, methodEnd, GET)) return Request.Method.GET;
+        if (equals(buffer, methodStart, methodEnd, POST)) return Request.Method.POST;
+        if (equals(buffer, methodStart, methodEnd, PUT)) return Request.Method.PUT;
+        if (equals(buffer, methodStart, methodEnd, DELETE)) return Request.Method.DELETE;
+        return Request.Method.BAD;
+    }
+
+    public boolean isHttp11() {
+        return equalsIgnoreCase(buffer, versionStart, versionEnd, HTTP_1_1);
+    }
+
+    public String path() {
+        int query = queryStart();
+        return decode(targetStart, query == -1 ? targetEnd : query - 1, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the raw query string or {@code null} if the request target has none.
+     */
+    public String query() {
+        int start = queryStart();
+        return start == -1 ? null : decode(start, targetEnd, StandardCharsets.UTF_8);
+    }
+
+    public int headerCount() {
+        return headerCount;
+    }
+
+    public String headerName(int index) {
+        return decode(headers[index * 4], headers[index * 4 + 1], StandardCharsets.ISO_8859_1);
+    }
+
+    public String headerValue(int index) {
+        return decode(headers[index * 4 + 2], headers[index * 4 + 3], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the value of the first header with the given name (case-insensitive) or {@code null}.
+     */
+    public String header(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            int start = headers[i * 4];
+            int end = headers[i * 4 + 1];
+            if (end - start == name.length() && regionMatchesIgnoreCase(start, name)) {
+                return headerValue(i);
+            }
+        }
+        return null;
+    }
+
+    public int bodyLength() {
+        return bodyLength;
+    }
+
+    /**
+     * Returns a read-only view of the body bytes; no bytes are copied.
+     */
+    public ByteBuffer body() {
+        ByteBuffer body = buffer.asReadOnlyBuffer();
+        body.limit(bodyStart + bodyLength).position(bodyStart);
+        return body.slice();
+    }
+
+    /**
+     * Returns a stream over the body bytes; no bytes are copied for heap buffers.
+     */
+    public InputStream bodyStream() {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + bodyStart, bodyLength);
+        }
+        byte[] bytes = new byte[bodyLength];
+        body().get(bytes);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    private int queryStart() {
+        for (int i = targetStart; i < targetEnd; i++) {
+            if (buffer.get(i) == '?') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionMatchesIgnoreCase(int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase((char) buffer.get(start + i)) != Character.toLowerCase(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String decode(int start, int end, Charset charset) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + start, end - start, charset);
+        }
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, charset);
+    }
+
+    private static boolean equals(ByteBuffer buffer, int start, int end, byte[] value) {
+        if (end - start != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(start + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] lowerCaseValue) {
+        if (end - start != lowerCaseValue.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerCaseValue.length; i++) {
+            byte b = buffer.get(start + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseValue[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+}
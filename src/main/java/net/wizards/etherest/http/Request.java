@@ -11,136 +11,142 @@ import org.apache.logging.log4j.Marker;
 import org.apache.logging.log4j.MarkerManager;
 
 import java.io.*;
+import java.lang.reflect.Type;
 import java.net.Socket;
 import java.net.URLDecoder;
-import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public final class Request {
-    private Method method;
-    private final String resource;
+    private final RawRequest raw;
+    private final Method method;
+    private final String peerAddr;
+    private String resource;
     private Map<String, String> queryParams;
-    private Map<String, String> headerParams;
     private String remoteAddr;
     private Socket socket;
     private String clientId;
     private String phoneId;
 
+    private static final Gson gson = new Gson();
+    private static final Type PARAMS_TYPE = new TypeToken<Map<String, String>>(){}.getType();
+
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Request.class.getSimpleName());
     private static final Marker TAG_HTTP = MarkerManager.getMarker("HTTP_TALK");
     private static final String NOT_EXISTS = "~not-exists~";
 
-    private Request(Socket socket) {
-        try {
-            BufferedReader br = new BufferedReader(new InputStreamReader(socket.getInputStream(), Charset.forName("UTF-8")));
-
-            String line = br.readLine();
-            if (line == null) throw new RuntimeException("Malformed HTTP header");
-            String[] requestParam = line.split(" ");
-            try {
-                method = Method.valueOf(requestParam[0]);
-            } catch (IllegalArgumentException e) {
-                method = Method.BAD;
-            }
-            boolean isPostOrPut = method == Method.POST || method == Method.PUT;
-            String[] urlParts = requestParam[1].split("\\?");
-            resource = urlParts[0];
-            queryParams = urlParts.length > 1 ? getQueryParams(urlParts[1]) : new HashMap<>();
-
-            Pattern headerPattern = Pattern.compile("^([^:]+?):\\s+(.+)$");
-            Matcher matcher;
-            headerParams = new HashMap<>();
-            int contentLength = 0;
-            while ((line = br.readLine()) != null && !line.equals("")) {
-                matcher = headerPattern.matcher(line);
-                if (matcher.matches()) {
-                    try {
-                        headerParams.put(matcher.group(1), matcher.group(2));
-                        if (matcher.group(1).equals("Content-Length")) {
-                            contentLength = Integer.parseInt(matcher.group(2));
-                        } else if (matcher.group(1).equalsIgnoreCase("did")) {
-                            queryParams.put("did", matcher.group(2));
-                        }
-                    } catch (IllegalStateException | IndexOutOfBoundsException e) {
-                        logger.debug(TAG_HTTP, "Malformed HTTP header: " + line);
-                    }
-                }
-            }
+    private Request(RawRequest raw, String peerAddr) {
+        this.raw = raw;
+        this.method = raw.method();
+        this.peerAddr = peerAddr;
+    }
 
-            if (isPostOrPut) {
-                StringBuilder body = new StringBuilder();
-                char[] load = new char[contentLength];
-                if (br.read(load, 0, contentLength) != -1) {
-                    body.append(load);
-                }
-                try {
-                    JsonReader reader = new JsonReader(new StringReader(body.toString()));
-                    reader.setLenient(true);
-                    Map<String, String> bodyParams = new Gson().fromJson(reader,
-                            new TypeToken<Map<String, String>>(){}.getType());
-                    if (bodyParams != null && !bodyParams.isEmpty()) {
-                        queryParams.putAll(bodyParams);
-                    }
-                } catch (Exception e) {
-                    logger.error(TAG_CLASS, "Failed to parse body params from this body:" + body.toString(), e);
-                    throw new RuntimeException("Invalid body params");
+    public static Request from(Socket socket) {
+        try {
+            Config config = Config.get();
+            HttpParser parser = new HttpParser(config.getRestMaxHeaderSize(), config.getRestMaxBodySize());
+            InputStream in = socket.getInputStream();
+            RawRequest raw;
+            while ((raw = parser.next()) == null) {
+                if (parser.fill(in) == -1) {
+                    throw new RuntimeException("Malformed HTTP header");
                 }
             }
-
-            if (headerParams.containsKey("X-Real-IP")) {
-                remoteAddr = headerParams.get("X-Real-IP");
-            } else {
-                remoteAddr = socket.getInetAddress().getHostAddress();
-            }
-            this.socket = socket;
-
-            if (Config.get().isLogHttpRequests()) {
-                logger.debug(TAG_HTTP, "Accepted HTTP request: " + this);
-            }
-        } catch (Exception e) {
+            Request request = from(raw, socket.getInetAddress().getHostAddress());
+            request.socket = socket;
+            return request;
+        } catch (IOException e) {
             logger.error(TAG_CLASS, "Failed to parse HTTP request from socket", e);
             throw new RuntimeException(e);
         }
     }
 
-    public static Request from(Socket socket) {
-        return new Request(socket);
+    public static Request from(RawRequest raw, String peerAddr) {
+        Request request = new Request(raw, peerAddr);
+        if (Config.get().isLogHttpRequests()) {
+            logger.debug(TAG_HTTP, "Accepted HTTP request: {}", request);
+        }
+        return request;
     }
 
     @Override
     public String toString() {
-        return String.format("{method=%s, resource=%s, queryParams=%s}, headerParams=%s", method, resource, queryParams, headerParams);
+        Map<String, String> headerParams = new LinkedHashMap<>();
+        for (int i = 0; i < raw.headerCount(); i++) {
+            headerParams.put(raw.headerName(i), raw.headerValue(i));
+        }
+        return String.format("{method=%s, resource=%s, queryParams=%s}, headerParams=%s", method, getResource(), queryParams(), headerParams);
     }
 
     public String getQueryParam(String paramName) {
-        String value = queryParams.get(paramName);
+        String value = queryParams().get(paramName);
         return value == null ? NOT_EXISTS : value;
     }
 
     public String getQueryParam(String paramName, String defaultValue) {
-        String value = queryParams.get(paramName);
+        String value = queryParams().get(paramName);
         return value == null ? defaultValue : value;
     }
 
     public String getHeaderParam(String paramName) {
-        String value = headerParams.get(paramName);
+        String value = raw.header(paramName);
         return value == null ? NOT_EXISTS : value;
     }
 
+    /**
+     * Returns the response coding negotiated from {@code Accept-Encoding}, {@code null} for none.
+     */
+    public ContentCoding getAcceptedCoding() {
+        return ContentCoding.negotiate(raw.header("Accept-Encoding"));
+    }
+
+    private Map<String, String> queryParams() {
+        if (queryParams == null) {
+            Map<String, String> params = getQueryParams(raw.query());
+            String deviceId = raw.header("did");
+            if (deviceId != null) {
+                params.put("did", deviceId);
+            }
+            if ((method == Method.POST || method == Method.PUT) && raw.bodyLength() > 0) {
+                try {
+                    JsonReader reader = new JsonReader(new InputStreamReader(raw.bodyStream(), StandardCharsets.UTF_8));
+                    reader.setLenient(true);
+                    Map<String, String> bodyParams = gson.fromJson(reader, PARAMS_TYPE);
+                    if (bodyParams != null && !bodyParams.isEmpty()) {
+                        params.putAll(bodyParams);
+                    }
+                } catch (Exception e) {
+                    logger.error(TAG_CLASS, "Failed to parse body params from this body:"
+                            + StandardCharsets.UTF_8.decode(raw.body()), e);
+                    throw new RuntimeException("Invalid body params");
+                }
+            }
+            queryParams = params;
+        }
+        return queryParams;
+    }
+
     private static Map<String, String> getQueryParams(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
         try {
-            Map<String, String> params = new HashMap<>();
-            for (String param : query.split("&")) {
-                String[] pair = param.split("=");
-                String key = URLDecoder.decode(pair[0], "UTF-8");
-                String value = "";
-                if (pair.length > 1) {
-                    value = URLDecoder.decode(pair[1], "UTF-8");
+            int start = 0;
+            while (start < query.length()) {
+                int end = query.indexOf('&', start);
+                if (end == -1) {
+                    end = query.length();
                 }
-                params.put(key, value);
+                int eq = query.indexOf('=', start);
+                if (eq == -1 || eq > end) {
+                    params.put(URLDecoder.decode(query.substring(start, end), "UTF-8"), "");
+                } else {
+                    params.put(URLDecoder.decode(query.substring(start, eq), "UTF-8"),
+                            URLDecoder.decode(query.substring(eq + 1, end), "UTF-8"));
+                }
+                start = end + 1;
             }
             return params;
         } catch (UnsupportedEncodingException e) {
@@ -149,19 +155,25 @@ public final class Request {
     }
 
     public String getRemoteAddr() {
+        if (remoteAddr == null) {
+            remoteAddr = Objects.toString(raw.header("X-Real-IP"), peerAddr);
+        }
         return remoteAddr;
     }
 
     public String getResource() {
+        if (resource == null) {
+            resource = raw.path();
+        }
         return resource;
     }
 
     public boolean hasAllQueryParams(String[] names) {
-        return queryParams.keySet().containsAll(Arrays.asList(names));
+        return names.length == 0 || queryParams().keySet().containsAll(Arrays.asList(names));
     }
 
     public boolean hasQueryParam(String name) {
-        return queryParams.containsKey(name);
+        return queryParams().containsKey(name);
     }
 
     public Socket getSocket() {
@@ -172,8 +184,13 @@ public final class Request {
         return method;
     }
 
+    public boolean isKeepAlive() {
+        String connection = raw.header("Connection");
+        return raw.isHttp11() ? !"close".equalsIgnoreCase(connection) : "keep-alive".equalsIgnoreCase(connection);
+    }
+
     public String getRestParams() {
-        return new Gson().toJson(queryParams);
+        return gson.toJson(queryParams());
     }
 
     public String getClientId() {
@@ -182,16 +199,16 @@ public final class Request {
 
     public void setDeviceId(String deviceId) {
         this.phoneId = deviceId;
-        queryParams.put("did", deviceId);
+        queryParams().put("did", deviceId);
     }
 
     public JsonObject getQueryParams() {
-        return new Gson().toJsonTree(queryParams).getAsJsonObject();
+        return gson.toJsonTree(queryParams()).getAsJsonObject();
     }
 
     public void setClientId(String clientId) {
         this.clientId = clientId;
-        queryParams.put("cid", clientId);
+        queryParams().put("cid", clientId);
     }
 
     public enum Method {
@@ -11,19 +11,36 @@ import java.io.*;
 import java.net.HttpURLConnection;
 import java.net.Socket;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Response {
     private Socket socket;
     private String contentType;
     private Status status;
     private String body;
+    private Body stream;
+    private boolean keepAlive;
+    private boolean chunkingAllowed = true;
+    private ContentCoding coding;
 
     private static final Logger logger = LogManager.getLogger();
     private static final Marker TAG_CLASS = MarkerManager.getMarker(Response.class.getSimpleName());
     private static final Marker TAG_HTTP = MarkerManager.getMarker("HTTP_TALK");
     private static final Marker TAG_REST = MarkerManager.getMarker("REST_TALK");
 
+    private static final int CHUNK_SIZE = 8192;
+
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    private static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    private static final byte[] TRANSFER_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    // pre-encoded Content-Type headers, one per route content type
+    private static final Map<String, byte[]> CONTENT_TYPE_HEADERS = new ConcurrentHashMap<>();
+
     Response(Socket socket, String contentType, Status status, String body) {
         this.socket = socket;
         this.contentType = contentType;
@@ -31,6 +48,12 @@ public class Response {
         this.body = body;
     }
 
+    Response(String contentType, Status status, Body stream) {
+        this.contentType = contentType;
+        this.status = status;
+        this.stream = stream;
+    }
+
     public static Response from(String url) {
         BufferedInputStream in = null;
         StringBuilder out = new StringBuilder();
@@ -63,40 +86,230 @@ public class Response {
         return this;
     }
 
+    public Response withKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+        return this;
+    }
+
+    /**
+     * Tells whether the client understands chunked transfer coding, i.e. sent an HTTP/1.1 request. Streamed
+     * bodies are buffered and sent with {@code Content-Length} otherwise.
+     */
+    public Response withChunking(boolean allowed) {
+        this.chunkingAllowed = allowed;
+        return this;
+    }
+
+    /**
+     * Lets the response be compressed in the coding negotiated with the client; {@code null} sends it as is.
+     * Streamed bodies are always compressed, others only from {@code restCompressionMinSize} bytes on.
+     */
+    public Response withCoding(ContentCoding coding) {
+        this.coding = coding;
+        return this;
+    }
+
+    /**
+     * Sends the response. A channel-backed socket gets the head and the body in one gathering write; the
+     * encoded body is never copied.
+     */
     public void send() {
         try {
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
-            String response = status.statusLine();
-            int contentLength = 0;
-            if (body != null) {
-                String contentTypeLine = "Content-RequestType: " + contentType + "; charset=utf-8" + "\r\n";
-                contentLength = body.getBytes(StandardCharsets.UTF_8).length;
-                String contentLengthLine = "Content-Length: " + contentLength + "\r\n";
-                response += contentTypeLine + contentLengthLine + "\r\n" + body;
-                if (Config.get().isLogRestResponses() && contentType.equals("application/json")) {
-                    if (contentLength > 1024) {
-                        logger.debug(TAG_REST, body.substring(0, Math.min(body.length(), 1024)) + "... (output truncated)");
-                    } else {
-                        logger.debug(TAG_REST, Misc.prettyJson(body));
-                    }
-                }
-            } else {
-                response += "\r\n";
+            if (body == null && stream != null && chunkingAllowed) {
+                sendChunked(socket.getOutputStream());
+                return;
             }
-            out.write(response);
-            out.flush();
-            if (Config.get().isLogHttpResponses()) {
-                if (contentLength > 1024) {
-                    logger.debug(TAG_REST, "Sent HTTP response: " + response.trim().substring(0, 1024) + "... (output truncated)");
-                } else {
-                    logger.debug(TAG_HTTP, "Sent HTTP response: " + response.trim());
+            SocketChannel channel = socket.getChannel();
+            if (channel != null && channel.isBlocking()) {
+                ByteBuffer[] buffers = encodeBuffers();
+                ByteBuffer last = buffers[buffers.length - 1];
+                while (last.hasRemaining()) {
+                    channel.write(buffers);
                 }
+            } else {
+                OutputStream out = socket.getOutputStream();
+                ByteBuffer buffer = encode();
+                out.write(buffer.array(), buffer.position(), buffer.remaining());
+                out.flush();
             }
         } catch (IOException e) {
+            keepAlive = false;
             logger.trace(TAG_CLASS, "Failed to send HTTP response", e);
         }
     }
 
+    /**
+     * Writes a streamed body straight to the connection in chunks, so its size needn't be known in advance.
+     * If the body fails halfway the response can't be completed and the connection is not kept alive.
+     */
+    private void sendChunked(OutputStream out) throws IOException {
+        ContentCoding applied = isCompressible() ? coding : null;
+        byte[] head = head(-1, applied);
+        if (Config.get().isLogHttpResponses()) {
+            logger.debug(TAG_HTTP, () -> "Sent HTTP response: " + new String(head, StandardCharsets.UTF_8).trim() + " (streamed)");
+        }
+        ChunkedOutputStream chunked = new ChunkedOutputStream(out, head, CHUNK_SIZE);
+        if (applied == null) {
+            stream.writeTo(chunked);
+        } else {
+            CompressingOutputStream compressing = new CompressingOutputStream(chunked, applied);
+            try {
+                stream.writeTo(compressing);
+                compressing.finish();
+            } finally {
+                compressing.discard();
+            }
+        }
+        chunked.finish();
+    }
+
+    /**
+     * Encodes the whole response into one buffer, e.g. for a non-blocking channel write.
+     */
+    public ByteBuffer encode() {
+        ByteBuffer[] buffers = encodeBuffers();
+        if (buffers.length == 1) {
+            return buffers[0];
+        }
+        ByteBuffer encoded = ByteBuffer.allocate(buffers[0].remaining() + buffers[1].remaining());
+        encoded.put(buffers[0]).put(buffers[1]);
+        encoded.flip();
+        return encoded;
+    }
+
+    /**
+     * Encodes the response as the head followed by the body, if there is one. The body is encoded once and
+     * the head is assembled from pre-encoded parts.
+     */
+    public ByteBuffer[] encodeBuffers() {
+        byte[] content = null;
+        if (body != null) {
+            content = body.getBytes(StandardCharsets.UTF_8);
+            if (Config.get().isLogRestResponses() && "application/json".equals(contentType)) {
+                String logged = body;
+                boolean truncated = content.length > 1024;
+                logger.debug(TAG_REST, () -> truncated
+                        ? logged.substring(0, Math.min(logged.length(), 1024)) + "... (output truncated)"
+                        : Misc.prettyJson(logged));
+            }
+        } else if (stream != null) {
+            ByteArrayOutputStream rendered = new ByteArrayOutputStream(CHUNK_SIZE);
+            try {
+                stream.writeTo(rendered);
+                content = rendered.toByteArray();
+            } catch (IOException e) {
+                logger.error(TAG_CLASS, "Failed to render response body", e);
+                status = Status.INTERNAL_SERVER_ERROR;
+                contentType = null;
+                stream = null;
+            }
+        }
+        ContentCoding applied = null;
+        if (content != null && isCompressible()
+                && content.length >= Misc.nvl(Config.get().getRestCompressionMinSize(), Integer.MAX_VALUE)) {
+            content = compress(content, coding);
+            applied = coding;
+        }
+        byte[] head = head(content == null ? 0 : content.length, applied);
+        if (Config.get().isLogHttpResponses()) {
+            String logged = body;
+            logger.debug(TAG_HTTP, () -> {
+                String sent = new String(head, StandardCharsets.UTF_8);
+                String message = (logged != null ? sent + logged : sent).trim();
+                return message.length() > 1024
+                        ? "Sent HTTP response: " + message.substring(0, 1024) + "... (output truncated)"
+                        : "Sent HTTP response: " + message;
+            });
+        }
+        return content == null || content.length == 0
+                ? new ByteBuffer[] {ByteBuffer.wrap(head)}
+                : new ByteBuffer[] {ByteBuffer.wrap(head), ByteBuffer.wrap(content)};
+    }
+
+    /**
+     * Status line and headers with the terminating empty line, for a body of {@code contentLength} bytes or,
+     * if it is negative, for a chunked body, in the given coding or as is if it's {@code null}.
+     */
+    private byte[] head(int contentLength, ContentCoding applied) {
+        byte[] statusLine = status.encodedStatusLine();
+        byte[] connection = keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE;
+        byte[] type = contentType != null && (body != null || stream != null) ? contentTypeHeader(contentType) : null;
+        byte[] encoding = applied == null ? null : applied.encodedHeaders();
+        int digits = contentLength < 0 ? 0 : stringSize(contentLength);
+        int size = statusLine.length + connection.length + (type == null ? 0 : type.length)
+                + (encoding == null ? 0 : encoding.length) + 2
+                + (contentLength < 0 ? TRANSFER_CHUNKED.length : CONTENT_LENGTH.length + digits + 2);
+        byte[] head = new byte[size];
+        int pos = put(head, 0, statusLine);
+        pos = put(head, pos, connection);
+        if (type != null) {
+            pos = put(head, pos, type);
+        }
+        if (encoding != null) {
+            pos = put(head, pos, encoding);
+        }
+        if (contentLength < 0) {
+            pos = put(head, pos, TRANSFER_CHUNKED);
+        } else {
+            pos = put(head, pos, CONTENT_LENGTH);
+            for (int i = pos + digits - 1; i >= pos; i--) {
+                head[i] = (byte) ('0' + contentLength % 10);
+                contentLength /= 10;
+            }
+            pos += digits;
+            head[pos++] = '\r';
+            head[pos++] = '\n';
+        }
+        head[pos++] = '\r';
+        head[pos] = '\n';
+        return head;
+    }
+
+    private boolean isCompressible() {
+        return coding != null && contentType != null
+                && (contentType.startsWith("text/") || contentType.contains("json"));
+    }
+
+    private static byte[] compress(byte[] content, ContentCoding coding) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.length / 2 + 64);
+        CompressingOutputStream out = null;
+        try {
+            out = new CompressingOutputStream(compressed, coding);
+            out.write(content, 0, content.length);
+            out.finish();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (out != null) {
+                out.discard();
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] contentTypeHeader(String contentType) {
+        byte[] header = CONTENT_TYPE_HEADERS.get(contentType);
+        if (header == null) {
+            header = ("Content-Type: " + contentType + "; charset=utf-8\r\n").getBytes(StandardCharsets.UTF_8);
+            CONTENT_TYPE_HEADERS.putIfAbsent(contentType, header);
+        }
+        return header;
+    }
+
+    private static int put(byte[] target, int pos, byte[] part) {
+        System.arraycopy(part, 0, target, pos, part.length);
+        return pos + part.length;
+    }
+
+    private static int stringSize(int value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
     public void setContentType(String contentType) {
         this.contentType = contentType;
     }
@@ -108,4 +321,19 @@ public class Response {
     public Status getStatus() {
         return status;
     }
+
+    public boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Body produced while the response is being sent, instead of being built as a string up front.
+     */
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
 }
@@ -1,6 +1,10 @@
 package net.wizards.etherest.http;
 
 public class Responses {
+    public static Response empty(Status status) {
+        return new Response(null, null, status, null);
+    }
+
     public static Response emptyOk() {
         return new Response(null, null, Status.OK, null);
     }
@@ -25,6 +29,17 @@ public class Responses {
         return plaintextOk(null, body);
     }*/
 
+    public static Response plaintextBadRequest(String body) {
+        return new Response(null, "text/plain", Status.BAD_REQUEST, body);
+    }
+
+    /**
+     * Response whose body is written by {@code body} as it is sent; the route sets the content type.
+     */
+    public static Response streamOk(Response.Body body) {
+        return new Response(null, Status.OK, body);
+    }
+
     public static Response emptyNotFound() {
         return new Response(null, null, Status.NOT_FOUND, null);
     }
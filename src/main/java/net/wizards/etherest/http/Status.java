@@ -1,5 +1,7 @@
 package net.wizards.etherest.http;
 
+import java.nio.charset.StandardCharsets;
+
 public enum Status {
     OK(200, "OK"),
     BAD_REQUEST(400, "Bad Request"),
@@ -7,15 +9,26 @@ public enum Status {
     FORBIDDEN(403, "Forbidden"),
     NOT_FOUND(404, "Not Found"),
     METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
+    PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
     INTERNAL_SERVER_ERROR(500, "Internal Server Error");
 
     private int code;
     private String reason;
+    private final String statusLine;
+    private final byte[] encodedStatusLine;
 
     Status(int code, String reason) {
         this.code = code;
         this.reason = reason;
+        this.statusLine = String.format("HTTP/1.1 %d %s\r\n", code, reason);
+        this.encodedStatusLine = statusLine.getBytes(StandardCharsets.US_ASCII);
     }
 
-    public String statusLine() { return String.format("HTTP/1.0 %d %s\r\n", code, reason); }
+    public String statusLine() { return statusLine; }
+
+    /**
+     * The status line encoded once, shared by all responses; must not be modified.
+     */
+    byte[] encodedStatusLine() { return encodedStatusLine; }
 }
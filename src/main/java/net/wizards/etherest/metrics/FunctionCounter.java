@@ -0,0 +1,28 @@
+package net.wizards.etherest.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Monotonic count kept by its owner, e.g. a pool's completed tasks, sampled when a snapshot is taken. Exported as
+ * a counter rather than a gauge, so rates can be taken over it.
+ */
+public final class FunctionCounter implements Metric {
+    private final LongSupplier supplier;
+
+    FunctionCounter(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public Object snapshot() {
+        try {
+            return get();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package net.wizards.etherest.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Value sampled from its owner when a snapshot is taken; costs nothing on the hot path.
+ */
+public final class Gauge implements Metric {
+    private final LongSupplier supplier;
+
+    Gauge(LongSupplier supplier) {
+        this.supplier = supplier;
+    }
+
+    public long get() {
+        return supplier.getAsLong();
+    }
+
+    @Override
+    public Object snapshot() {
+        try {
+            return get();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
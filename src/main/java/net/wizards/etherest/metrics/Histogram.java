@@ -0,0 +1,186 @@
+package net.wizards.etherest.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram in nanoseconds with log-linear buckets, as in HdrHistogram: every power of two is split into
+ * {@value #SUB_BUCKETS} equal buckets, so any recorded value is known within 1/{@value #SUB_BUCKETS} of itself.
+ * Recording is one array increment plus striped count and sum updates, with no locks and no allocation.
+ * Values of {@code 2^(}{@value #MAX_EXPONENT}{@code +1)} ns (about 10 hours) and more are recorded as the largest
+ * trackable value.
+ */
+public final class Histogram implements Metric {
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    static final int SUB_BUCKET_BITS = 4;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int MAX_EXPONENT = 44;
+    static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    Histogram() {
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        } else if (nanos > MAX_VALUE) {
+            nanos = MAX_VALUE;
+        }
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Records the time elapsed since {@code startNanos}, a {@link System#nanoTime()} reading.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Fills {@code counts} with the number of recorded values not greater than each of the ascending
+     * {@code bounds} in one pass over the buckets and returns the total count. A bucket is counted under the first
+     * bound its whole range fits in, so counts are exact for bounds on bucket edges and slightly low otherwise.
+     */
+    public long cumulativeCounts(long[] bounds, long[] counts) {
+        Arrays.fill(counts, 0, bounds.length, 0);
+        long total = 0;
+        int bound = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long count = buckets.get(i);
+            if (count == 0) {
+                continue;
+            }
+            long upper = lowerBound(i) + width(i) - 1;
+            while (bound < bounds.length && upper > bounds[bound]) {
+                bound++;
+            }
+            if (bound < bounds.length) {
+                counts[bound] += count;
+            }
+            total += count;
+        }
+        for (int b = 1; b < bounds.length; b++) {
+            counts[b] += counts[b - 1];
+        }
+        return total;
+    }
+
+    /**
+     * Returns the value at the quantile (0..1), as the midpoint of the bucket holding it.
+     */
+    public long percentile(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return percentile(counts, total, quantile);
+    }
+
+    @Override
+    public Object snapshot() {
+        return new Snapshot(this);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        value = Math.min(value, MAX_VALUE);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    static long width(int bucket) {
+        return bucket < SUB_BUCKETS ? 1 : 1L << (bucket / SUB_BUCKETS - 1);
+    }
+
+    private static long percentile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return lowerBound(i) + width(i) / 2;
+            }
+        }
+        return lowerBound(counts.length - 1);
+    }
+
+    public static class Snapshot {
+        // the number of recorded values
+        private final long count;
+        // the mean of the recorded values, ms
+        private final double meanMillis;
+        // the maximum recorded value, ms
+        private final double maxMillis;
+        // the median, ms
+        private final double p50Millis;
+        // the 90th percentile, ms
+        private final double p90Millis;
+        // the 99th percentile, ms
+        private final double p99Millis;
+        // the 99.9th percentile, ms
+        private final double p999Millis;
+
+        private Snapshot(Histogram histogram) {
+            long[] counts = new long[BUCKET_COUNT];
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts[i] = histogram.buckets.get(i);
+                total += counts[i];
+            }
+            count = total;
+            meanMillis = millis(total == 0 ? 0 : histogram.sum.sum() / total);
+            maxMillis = millis(histogram.max.get());
+            p50Millis = millis(percentile(counts, total, 0.5));
+            p90Millis = millis(percentile(counts, total, 0.9));
+            p99Millis = millis(percentile(counts, total, 0.99));
+            p999Millis = millis(percentile(counts, total, 0.999));
+        }
+
+        private static double millis(long nanos) {
+            return Math.round(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1) * 1000) / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package net.wizards.etherest.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Gauges of the JVM memory, garbage collectors and threads, read from the platform MXBeans on snapshot.
+ */
+final class JvmMetrics {
+    private JvmMetrics() {
+        throw new RuntimeException();
+    }
+
+    static void register(Metrics metrics) {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        metrics.gauge("jvm_memory_used_bytes", () -> memory.getHeapMemoryUsage().getUsed(), "area", "heap");
+        metrics.gauge("jvm_memory_committed_bytes", () -> memory.getHeapMemoryUsage().getCommitted(), "area", "heap");
+        metrics.gauge("jvm_memory_max_bytes", () -> memory.getHeapMemoryUsage().getMax(), "area", "heap");
+        metrics.gauge("jvm_memory_used_bytes", () -> memory.getNonHeapMemoryUsage().getUsed(), "area", "nonheap");
+        metrics.gauge("jvm_memory_committed_bytes", () -> memory.getNonHeapMemoryUsage().getCommitted(), "area", "nonheap");
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            metrics.counter("jvm_gc_collections", gc::getCollectionCount, "gc", gc.getName());
+            metrics.counter("jvm_gc_time_millis", gc::getCollectionTime, "gc", gc.getName());
+        }
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        metrics.gauge("jvm_threads_live", threads::getThreadCount);
+        metrics.gauge("jvm_threads_daemon", threads::getDaemonThreadCount);
+        metrics.gauge("jvm_threads_peak", threads::getPeakThreadCount);
+    }
+}
@@ -0,0 +1,8 @@
+package net.wizards.etherest.metrics;
+
+public interface Metric {
+    /**
+     * Returns a point-in-time view of the metric suitable for JSON serialization.
+     */
+    Object snapshot();
+}
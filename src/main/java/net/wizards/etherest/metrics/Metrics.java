@@ -0,0 +1,141 @@
+package net.wizards.etherest.metrics;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide registry of counters, gauges and latency histograms, identified by a name and optional
+ * {@code label, value} pairs. Lookups go through a concurrent map, so hot paths should look a metric up once
+ * and keep the reference; updating a metric never locks.
+ */
+public final class Metrics {
+    private final ConcurrentHashMap<Id, Metric> registry = new ConcurrentHashMap<>();
+
+    private static final Metrics instance = new Metrics();
+
+    private Metrics() {
+        JvmMetrics.register(this);
+    }
+
+    public static Metrics get() {
+        return instance;
+    }
+
+    public Counter counter(String name, String... labels) {
+        return register(new Id(name, labels), Counter.class, Counter::new);
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return register(new Id(name, labels), Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Registers a gauge, replacing an earlier one of the same identity, e.g. one of a re-created component.
+     */
+    public Gauge gauge(String name, LongSupplier supplier, String... labels) {
+        Gauge gauge = new Gauge(supplier);
+        registry.put(new Id(name, labels), gauge);
+        return gauge;
+    }
+
+    /**
+     * Registers a counter whose count is kept by its owner, replacing an earlier one of the same identity.
+     */
+    public FunctionCounter counter(String name, LongSupplier supplier, String... labels) {
+        FunctionCounter counter = new FunctionCounter(supplier);
+        registry.put(new Id(name, labels), counter);
+        return counter;
+    }
+
+    public void forEach(BiConsumer<Id, Metric> action) {
+        registry.forEach(action);
+    }
+
+    /**
+     * Returns the current values keyed by {@code name{label=value,...}}, sorted.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> result = new TreeMap<>();
+        registry.forEach((id, metric) -> result.put(id.toString(), metric.snapshot()));
+        return result;
+    }
+
+    private <T extends Metric> T register(Id id, Class<T> type, Supplier<T> factory) {
+        Metric metric = registry.get(id);
+        if (metric == null) {
+            metric = registry.computeIfAbsent(id, key -> factory.get());
+        }
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(id + " is already registered as " + metric.getClass().getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    public static final class Id {
+        private final String name;
+        private final String[] labels;
+        private final int hash;
+
+        private Id(String name, String[] labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("Labels of " + name + " must be name, value pairs");
+            }
+            this.name = name;
+            this.labels = labels;
+            this.hash = 31 * name.hashCode() + Arrays.hashCode(labels);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getLabelCount() {
+            return labels.length / 2;
+        }
+
+        public String getLabelName(int index) {
+            return labels[index * 2];
+        }
+
+        public String getLabelValue(int index) {
+            return labels[index * 2 + 1];
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Id)) {
+                return false;
+            }
+            Id id = (Id) o;
+            return hash == id.hash && name.equals(id.name) && Arrays.equals(labels, id.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            if (labels.length == 0) {
+                return name;
+            }
+            StringBuilder sb = new StringBuilder(name).append('{');
+            for (int i = 0; i < labels.length; i += 2) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(labels[i]).append('=').append(labels[i + 1]);
+            }
+            return sb.append('}').toString();
+        }
+    }
+}
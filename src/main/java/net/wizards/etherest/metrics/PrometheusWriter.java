@@ -0,0 +1,200 @@
+package net.wizards.etherest.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the registry in the Prometheus text exposition format (version 0.0.4) directly to a stream, through
+ * its own small buffer. Names get the {@value #PREFIX} prefix; counters get {@code _total}; histograms are
+ * reported in seconds under {@code _seconds} with fixed latency buckets.
+ */
+public final class PrometheusWriter {
+    private final OutputStream out;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final long[] bucketCounts = new long[BOUNDS.length];
+    private int count;
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4";
+
+    private static final String PREFIX = "etherest_";
+    private static final int BUFFER_SIZE = 4096;
+    private static final long[] BOUNDS = {
+            100_000L, 250_000L, 500_000L, 1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L,
+            50_000_000L, 100_000_000L, 250_000_000L, 500_000_000L, 1_000_000_000L, 2_500_000_000L,
+            5_000_000_000L, 10_000_000_000L};
+    private static final String[] BOUND_LABELS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025",
+            "0.05", "0.1", "0.25", "0.5", "1", "2.5",
+            "5", "10"};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    public PrometheusWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    public void write(Metrics metrics) throws IOException {
+        List<Map.Entry<Metrics.Id, Metric>> entries = new ArrayList<>();
+        metrics.forEach((id, metric) -> entries.add(new AbstractMap.SimpleImmutableEntry<>(id, metric)));
+        entries.sort(Comparator.comparing((Map.Entry<Metrics.Id, Metric> e) -> e.getKey().getName())
+                .thenComparing(e -> e.getKey().toString()));
+        String family = null;
+        for (Map.Entry<Metrics.Id, Metric> entry : entries) {
+            Metrics.Id id = entry.getKey();
+            Metric metric = entry.getValue();
+            if (!id.getName().equals(family)) {
+                family = id.getName();
+                writeType(id.getName(), metric);
+            }
+            if (metric instanceof Counter) {
+                writeSample(id, "_total", null, ((Counter) metric).get());
+            } else if (metric instanceof FunctionCounter) {
+                Object value = metric.snapshot();
+                if (value != null) {
+                    writeSample(id, "_total", null, (Long) value);
+                }
+            } else if (metric instanceof Gauge) {
+                Object value = metric.snapshot();
+                if (value != null) {
+                    writeSample(id, "", null, (Long) value);
+                }
+            } else if (metric instanceof Histogram) {
+                writeHistogram(id, (Histogram) metric);
+            }
+        }
+        flush();
+    }
+
+    public void flush() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            count = 0;
+        }
+        out.flush();
+    }
+
+    private void writeType(String name, Metric metric) throws IOException {
+        ascii("# TYPE ").ascii(PREFIX).ascii(name);
+        if (metric instanceof Counter || metric instanceof FunctionCounter) {
+            ascii("_total counter\n");
+        } else if (metric instanceof Histogram) {
+            ascii("_seconds histogram\n");
+        } else {
+            ascii(" gauge\n");
+        }
+    }
+
+    private void writeHistogram(Metrics.Id id, Histogram histogram) throws IOException {
+        long total = histogram.cumulativeCounts(BOUNDS, bucketCounts);
+        for (int i = 0; i < BOUNDS.length; i++) {
+            writeSample(id, "_seconds_bucket", BOUND_LABELS[i], bucketCounts[i]);
+        }
+        writeSample(id, "_seconds_bucket", "+Inf", total);
+        writeName(id, "_seconds_sum", null);
+        ascii(Double.toString(histogram.getSum() / NANOS_PER_SECOND)).write('\n');
+        writeSample(id, "_seconds_count", null, total);
+    }
+
+    private void writeSample(Metrics.Id id, String suffix, String le, long value) throws IOException {
+        writeName(id, suffix, le);
+        number(value).write('\n');
+    }
+
+    private void writeName(Metrics.Id id, String suffix, String le) throws IOException {
+        ascii(PREFIX).ascii(id.getName()).ascii(suffix);
+        int labels = id.getLabelCount();
+        if (labels > 0 || le != null) {
+            write('{');
+            for (int i = 0; i < labels; i++) {
+                if (i > 0) {
+                    write(',');
+                }
+                ascii(id.getLabelName(i)).ascii("=\"");
+                labelValue(id.getLabelValue(i));
+                write('"');
+            }
+            if (le != null) {
+                if (labels > 0) {
+                    write(',');
+                }
+                ascii("le=\"").ascii(le).write('"');
+            }
+            write('}');
+        }
+        write(' ');
+    }
+
+    private void labelValue(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                String escaped = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+                for (byte b : escaped.getBytes(StandardCharsets.UTF_8)) {
+                    write(b);
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                write('\\');
+                write(c);
+            } else if (c == '\n') {
+                ascii("\\n");
+            } else {
+                write(c);
+            }
+        }
+    }
+
+    private PrometheusWriter ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+        return this;
+    }
+
+    private PrometheusWriter number(long value) throws IOException {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                return ascii(Long.toString(value));
+            }
+            write('-');
+            value = -value;
+        }
+        if (count + 20 > buffer.length) {
+            drain();
+        }
+        int start = count;
+        do {
+            buffer[count++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        for (int i = start, j = count - 1; i < j; i++, j--) {
+            byte b = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = b;
+        }
+        return this;
+    }
+
+    private void write(int b) throws IOException {
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    private void drain() throws IOException {
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+}
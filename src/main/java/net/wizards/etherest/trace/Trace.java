@@ -0,0 +1,129 @@
+package net.wizards.etherest.trace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One sampled REST request or bot update: a trace ID and the timed spans recorded while it was handled.
+ * Spans are recorded when they end, with their start time, so nesting follows from the intervals. Spans of
+ * asynchronous work started by the trace, such as Bot API calls, may be added after the trace itself ended.
+ */
+public final class Trace {
+    private final String id;
+    private final String kind;
+    private volatile String name;
+    private final long startedAt;
+    private final long startNanos;
+    private volatile long endNanos;
+    private final List<Span> spans = new ArrayList<>();
+
+    Trace(String id, String kind, String name) {
+        this.id = id;
+        this.kind = kind;
+        this.name = name;
+        this.startedAt = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Renames the trace once the handled request is known, e.g. after parsing.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Adds a span that ran from {@code startNanos} until now. Safe to call from any thread.
+     */
+    public void record(String span, long startNanos) {
+        long end = System.nanoTime();
+        synchronized (spans) {
+            spans.add(new Span(span, startNanos, end));
+        }
+    }
+
+    void end() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns the time from the start of the trace to the end of its last span or of the trace, whichever is later.
+     */
+    long durationNanos() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        synchronized (spans) {
+            for (Span span : spans) {
+                end = Math.max(end, span.end);
+            }
+        }
+        return end - startNanos;
+    }
+
+    long getStartedAt() {
+        return startedAt;
+    }
+
+    View view() {
+        return new View(this);
+    }
+
+    private static final class Span {
+        private final String name;
+        private final long start;
+        private final long end;
+
+        Span(String name, long start, long end) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * Serialized form for {@code /rest/traces}, times in ms relative to the trace start.
+     */
+    static final class View {
+        private final String id;
+        private final String kind;
+        private final String name;
+        private final long startedAt;
+        private final double durationMillis;
+        private final List<SpanView> spans = new ArrayList<>();
+
+        private View(Trace trace) {
+            id = trace.id;
+            kind = trace.kind;
+            name = trace.name;
+            startedAt = trace.startedAt;
+            durationMillis = millis(trace.durationNanos());
+            synchronized (trace.spans) {
+                for (Span span : trace.spans) {
+                    spans.add(new SpanView(span.name, millis(span.start - trace.startNanos),
+                            millis(span.end - span.start)));
+                }
+            }
+            spans.sort((a, b) -> Double.compare(a.offsetMillis, b.offsetMillis));
+        }
+    }
+
+    private static final class SpanView {
+        private final String name;
+        private final double offsetMillis;
+        private final double durationMillis;
+
+        SpanView(String name, double offsetMillis, double durationMillis) {
+            this.name = name;
+            this.offsetMillis = offsetMillis;
+            this.durationMillis = durationMillis;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / (double) TimeUnit.MILLISECONDS.toNanos(1) * 1000) / 1000.0;
+    }
+}
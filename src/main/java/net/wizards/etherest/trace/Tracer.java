@@ -0,0 +1,119 @@
+package net.wizards.etherest.trace;
+
+import net.wizards.etherest.Config;
+import net.wizards.etherest.util.Misc;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Span tracing of REST requests and bot updates. A handling thread opens a trace with {@link #begin}, the code
+ * it calls records spans into the thread's current trace with {@link #record}, and {@link #end} puts the trace
+ * into a fixed-size ring buffer that {@code /rest/traces} reads from.
+ * <p>
+ * Only a sampled share of requests is traced. When tracing is disabled, or the current request isn't sampled,
+ * recording a span is a volatile read and a thread-local lookup and allocates nothing.
+ */
+public class Tracer {
+    private static volatile boolean enabled;
+    private static volatile double sampleRate;
+    private static volatile AtomicReferenceArray<Trace> buffer = new AtomicReferenceArray<>(1);
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final ThreadLocal<Trace> current = new ThreadLocal<>();
+
+    static {
+        reconfig();
+        Config.addReloadListener(Tracer::reconfig);
+    }
+
+    private Tracer() {
+        throw new RuntimeException();
+    }
+
+    /**
+     * Opens a trace on the current thread if tracing is enabled and the request is sampled.
+     *
+     * @return the trace, or {@code null} if the request isn't traced
+     */
+    public static Trace begin(String kind, String name) {
+        if (!enabled) {
+            return null;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() >= sampleRate) {
+            return null;
+        }
+        Trace trace = new Trace(String.format("%016x", random.nextLong()), kind, name);
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * Closes the trace opened by {@link #begin} on this thread; {@code null} is ignored.
+     */
+    public static void end(Trace trace) {
+        if (trace == null) {
+            return;
+        }
+        current.remove();
+        trace.end();
+        AtomicReferenceArray<Trace> traces = buffer;
+        traces.set((int) (sequence.getAndIncrement() % traces.length()), trace);
+    }
+
+    /**
+     * Adds a span from {@code startNanos} until now to the trace of the current thread, if there is one.
+     */
+    public static void record(String span, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        Trace trace = current.get();
+        if (trace != null) {
+            trace.record(span, startNanos);
+        }
+    }
+
+    /**
+     * Returns the trace of the current thread, to record spans of work it hands over to other threads.
+     */
+    public static Trace current() {
+        return enabled ? current.get() : null;
+    }
+
+    /**
+     * Returns up to {@code limit} of the buffered traces that took at least {@code minMillis}, slowest first.
+     */
+    public static List<Object> slowest(long minMillis, int limit) {
+        long minNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+        AtomicReferenceArray<Trace> traces = buffer;
+        List<Trace> selected = new ArrayList<>();
+        for (int i = 0; i < traces.length(); i++) {
+            Trace trace = traces.get(i);
+            if (trace != null && trace.durationNanos() >= minNanos) {
+                selected.add(trace);
+            }
+        }
+        selected.sort(Comparator.comparingLong(Trace::durationNanos).reversed());
+        List<Object> result = new ArrayList<>();
+        for (Trace trace : selected.subList(0, Math.max(0, Math.min(limit, selected.size())))) {
+            result.add(trace.view());
+        }
+        return result;
+    }
+
+    private static void reconfig() {
+        Config config = Config.get();
+        sampleRate = Misc.nvl(config.getTraceSampleRate(), 0.0);
+        int size = Math.max(1, Misc.nvl(config.getTraceBufferSize(), 1));
+        if (buffer.length() != size) {
+            buffer = new AtomicReferenceArray<>(size);
+        }
+        enabled = Misc.nvl(config.isTraceEnabled(), false);
+    }
+}
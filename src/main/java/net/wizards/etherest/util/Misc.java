@@ -1,5 +1,6 @@
 package net.wizards.etherest.util;
 
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
@@ -11,6 +12,8 @@ import java.security.SecureRandom;
 import java.util.Base64;
 
 public class Misc {
+    private static final Gson PRETTY_GSON = new GsonBuilder().setPrettyPrinting().create();
+
     public static byte[] hexToBytes(String str) {
         if (str == null) {
             return null;
@@ -28,7 +31,7 @@ public class Misc {
 
     public static String prettyJson(String jsonString) {
         JsonElement jsonElement = new JsonParser().parse(jsonString);
-        return new GsonBuilder().setPrettyPrinting().create().toJson(jsonElement);
+        return PRETTY_GSON.toJson(jsonElement);
     }
 
     public static String readStream(Reader reader) throws IOException {
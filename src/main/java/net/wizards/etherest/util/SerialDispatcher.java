@@ -0,0 +1,168 @@
+package net.wizards.etherest.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks submitted under the same key one at a time and in submission order on a shared worker pool.
+ * Every key with pending work has a bounded mailbox; a mailbox is dropped as soon as it drains, so memory is
+ * proportional to the number of busy keys rather than to all keys ever seen.
+ * <p>
+ * A submit to a full mailbox, or one exceeding the total pending limit, blocks the caller for up to the submit
+ * timeout and is rejected after that.
+ */
+public class SerialDispatcher<K> {
+    private final ConcurrentHashMap<K, Mailbox> mailboxes = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final Semaphore pending;
+    private final int maxPending;
+    private final int mailboxCapacity;
+    private final long submitTimeoutNanos;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(SerialDispatcher.class.getSimpleName());
+
+    public SerialDispatcher(ExecutorService workers, int mailboxCapacity, int maxPending, long submitTimeoutMillis) {
+        this.workers = workers;
+        this.mailboxCapacity = mailboxCapacity;
+        this.maxPending = maxPending;
+        this.pending = new Semaphore(maxPending);
+        this.submitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(submitTimeoutMillis);
+    }
+
+    /**
+     * Queues the task behind the other tasks of the key.
+     *
+     * @return {@code false} if the task was rejected because the mailbox stayed full for the whole submit timeout
+     */
+    public boolean submit(K key, Runnable task) throws InterruptedException {
+        long deadline = System.nanoTime() + submitTimeoutNanos;
+        if (!pending.tryAcquire(submitTimeoutNanos, TimeUnit.NANOSECONDS)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        boolean queued = false;
+        try {
+            while (true) {
+                Mailbox mailbox = mailboxes.computeIfAbsent(key, Mailbox::new);
+                synchronized (mailbox) {
+                    while (!mailbox.retired && mailbox.tasks.size() >= mailboxCapacity) {
+                        long left = deadline - System.nanoTime();
+                        if (left <= 0) {
+                            rejected.incrementAndGet();
+                            return false;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(mailbox, left);
+                    }
+                    if (mailbox.retired) {
+                        continue;
+                    }
+                    mailbox.tasks.add(task);
+                    if (!mailbox.scheduled) {
+                        try {
+                            workers.execute(mailbox);
+                        } catch (RejectedExecutionException e) {
+                            mailbox.tasks.remove(task);
+                            throw e;
+                        }
+                        mailbox.scheduled = true;
+                    }
+                    queued = true;
+                    return true;
+                }
+            }
+        } finally {
+            if (!queued) {
+                pending.release();
+            }
+        }
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+
+    public int getMailboxCount() {
+        return mailboxes.size();
+    }
+
+    public int getPending() {
+        return maxPending - pending.availablePermits();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Runs one task per turn on the worker pool and re-queues itself while tasks remain, so a busy key can't
+     * starve the others.
+     */
+    private class Mailbox implements Runnable {
+        private final K key;
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private boolean scheduled;
+        private boolean retired;
+
+        Mailbox(K key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                notifyAll();
+            }
+            try {
+                if (task != null) {
+                    task.run();
+                }
+            } catch (Throwable t) {
+                logger.error(TAG_CLASS, "Task of " + key + " failed", t);
+            } finally {
+                if (task != null) {
+                    processed.incrementAndGet();
+                    pending.release();
+                }
+            }
+            synchronized (this) {
+                if (tasks.isEmpty()) {
+                    scheduled = false;
+                    retired = true;
+                    mailboxes.remove(key, this);
+                    notifyAll();
+                } else {
+                    try {
+                        workers.execute(this);
+                    } catch (RejectedExecutionException e) {
+                        logger.warn(TAG_CLASS, "Dispatcher stopped, " + tasks.size() + " task(s) of " + key + " dropped");
+                        pending.release(tasks.size());
+                        tasks.clear();
+                        scheduled = false;
+                        retired = true;
+                        mailboxes.remove(key, this);
+                    }
+                }
+            }
+        }
+    }
+}
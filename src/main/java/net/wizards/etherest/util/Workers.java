@@ -0,0 +1,123 @@
+package net.wizards.etherest.util;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.Marker;
+import org.apache.logging.log4j.MarkerManager;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Worker executors for the configured execution mode: a fixed pool of platform threads, or a new virtual thread
+ * per task on JVMs that have them (21+). Virtual threads are looked up reflectively so the same build runs on
+ * older JVMs, falling back to the platform pool.
+ */
+public final class Workers {
+    public static final String MODE_PLATFORM = "platform";
+    public static final String MODE_VIRTUAL = "virtual";
+
+    private static final Logger logger = LogManager.getLogger();
+    private static final Marker TAG_CLASS = MarkerManager.getMarker(Workers.class.getSimpleName());
+
+    private static final Method IS_VIRTUAL = isVirtualMethod();
+
+    private Workers() {
+        throw new RuntimeException();
+    }
+
+    /**
+     * @param nameFormat thread name format taking the thread sequence number
+     */
+    public static ExecutorService newPool(String mode, int poolSize, String nameFormat) {
+        if (MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+            ExecutorService executor = newVirtualThreadPerTaskExecutor(nameFormat);
+            if (executor != null) {
+                return executor;
+            }
+            logger.warn(TAG_CLASS, "Virtual threads are not supported by this JVM ("
+                    + System.getProperty("java.version") + "), using a pool of " + poolSize + " platform threads");
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(poolSize,
+                r -> new Thread(r, String.format(nameFormat, threadCount.getAndIncrement())));
+    }
+
+    /**
+     * Resizes a platform thread pool made by {@link #newPool}; a virtual thread executor has no size.
+     *
+     * @return whether the executor was resized
+     */
+    public static boolean resize(ExecutorService executor, int poolSize) {
+        if (!(executor instanceof ThreadPoolExecutor)) {
+            return false;
+        }
+        ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+        // the core size may never exceed the maximum, so the order depends on the direction
+        if (poolSize > pool.getMaximumPoolSize()) {
+            pool.setMaximumPoolSize(poolSize);
+            pool.setCorePoolSize(poolSize);
+        } else {
+            pool.setCorePoolSize(poolSize);
+            pool.setMaximumPoolSize(poolSize);
+        }
+        return true;
+    }
+
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Tells whether the thread is virtual; always {@code false} on JVMs without virtual threads.
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (Boolean) IS_VIRTUAL.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static Method isVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor(String nameFormat) {
+        if (!isVirtualSupported()) {
+            return null;
+        }
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            ThreadFactory virtualFactory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+            AtomicInteger threadCount = new AtomicInteger();
+            ThreadFactory factory = r -> {
+                Thread thread = virtualFactory.newThread(r);
+                thread.setName(String.format(nameFormat, threadCount.getAndIncrement()));
+                return thread;
+            };
+            Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) perTask.invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            logger.error(TAG_CLASS, "Failed to create virtual thread executor", e);
+            return null;
+        }
+    }
+}